@@ -0,0 +1,336 @@
+package com.datafaber.dehydrated;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client for the provider APIs, owning a pool of keep-alive connections so that consecutive API calls
+ * (and the TLS sessions they established) are reused instead of being set up again for every request
+ * <p>
+ * Requests are built fluently, for example {@code client.get(url).header("X-API-Key", key).asString()}
+ */
+public class ApiClient implements Closeable {
+
+  // property names and defaults
+  private static final String API_CONNECT_TIMEOUT_MSECS = "API_CONNECT_TIMEOUT_MSECS";
+  private static final String API_CONNECT_TIMEOUT_MSECS_DEFAULT = "10000";
+  private static final String API_READ_TIMEOUT_MSECS = "API_READ_TIMEOUT_MSECS";
+  private static final String API_READ_TIMEOUT_MSECS_DEFAULT = "60000";
+  private static final String API_MAX_CONNECTIONS = "API_MAX_CONNECTIONS";
+  private static final String API_MAX_CONNECTIONS_DEFAULT = "20";
+
+  // idle connections are closed after this time, before the servers are likely to close them on their side
+  private static final long IDLE_CONNECTION_TIMEOUT_SECS = 30L;
+
+  private final CloseableHttpClient mHttpClient;
+
+
+  /**
+   * Builds a client configured by the given properties
+   * @param pConfiguration configuration properties
+   */
+  public ApiClient (Properties pConfiguration) {
+    int connectTimeoutMsecs = Integer.parseInt(pConfiguration.getProperty(API_CONNECT_TIMEOUT_MSECS, API_CONNECT_TIMEOUT_MSECS_DEFAULT));
+    int readTimeoutMsecs = Integer.parseInt(pConfiguration.getProperty(API_READ_TIMEOUT_MSECS, API_READ_TIMEOUT_MSECS_DEFAULT));
+    int maxConnections = Integer.parseInt(pConfiguration.getProperty(API_MAX_CONNECTIONS, API_MAX_CONNECTIONS_DEFAULT));
+
+    // all the requests go to a single API endpoint, so the whole pool is available to it
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    RequestConfig requestConfig = RequestConfig.custom().
+            setConnectTimeout(connectTimeoutMsecs).
+            setConnectionRequestTimeout(connectTimeoutMsecs).
+            setSocketTimeout(readTimeoutMsecs).
+            build();
+    mHttpClient = HttpClients.custom().
+            setConnectionManager(connectionManager).
+            setDefaultRequestConfig(requestConfig).
+            setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE).
+            evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECS, TimeUnit.SECONDS).
+            disableCookieManagement().
+            build();
+  }
+
+
+  /**
+   * @param pUrl url
+   * @return GET request to the given url
+   */
+  public Request get (String pUrl) {
+    return new Request("GET", pUrl);
+  }
+
+
+  /**
+   * @param pUrl url
+   * @return POST request to the given url
+   */
+  public Request post (String pUrl) {
+    return new Request("POST", pUrl);
+  }
+
+
+  /**
+   * @param pUrl url
+   * @return PUT request to the given url
+   */
+  public Request put (String pUrl) {
+    return new Request("PUT", pUrl);
+  }
+
+
+  /**
+   * @param pUrl url
+   * @return PATCH request to the given url
+   */
+  public Request patch (String pUrl) {
+    return new Request("PATCH", pUrl);
+  }
+
+
+  /**
+   * @param pUrl url
+   * @return DELETE request to the given url
+   */
+  public Request delete (String pUrl) {
+    return new Request("DELETE", pUrl);
+  }
+
+
+  /**
+   * Closes all the pooled connections
+   * @throws IOException if errors
+   */
+  @Override
+  public void close () throws IOException {
+    mHttpClient.close();
+  }
+
+
+  /**
+   * A request being built
+   */
+  public class Request {
+
+    private final String mMethod;
+    private final String mUrl;
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+    private final Map<String, String> mQuery = new LinkedHashMap<>();
+    private String mBody;
+
+    private Request (String pMethod, String pUrl) {
+      mMethod = pMethod;
+      mUrl = pUrl;
+    }
+
+    /**
+     * Sets a header
+     * @param pName header name
+     * @param pValue header value
+     * @return this request
+     */
+    public Request header (String pName, String pValue) {
+      mHeaders.put(pName, pValue);
+      return this;
+    }
+
+    /**
+     * Adds a query string parameter
+     * @param pName parameter name
+     * @param pValue parameter value
+     * @return this request
+     */
+    public Request queryString (String pName, Object pValue) {
+      mQuery.put(pName, String.valueOf(pValue));
+      return this;
+    }
+
+    /**
+     * Adds query string parameters
+     * @param pParameters parameter names and values
+     * @return this request
+     */
+    public Request queryString (Map<String, ?> pParameters) {
+      for (Map.Entry<String, ?> parameter : pParameters.entrySet()) {
+        queryString(parameter.getKey(), parameter.getValue());
+      }
+      return this;
+    }
+
+    /**
+     * Sets a JSON body
+     * @param pBody request body
+     * @return this request
+     */
+    public Request body (JSONObject pBody) {
+      mBody = pBody.toString();
+      return this;
+    }
+
+    /**
+     * Sets a JSON body
+     * @param pBody request body
+     * @return this request
+     */
+    public Request body (JSONArray pBody) {
+      mBody = pBody.toString();
+      return this;
+    }
+
+    /**
+     * Sends the request and reads the whole response body
+     * @return response
+     * @throws ApiException if the request could not be sent or the response could not be read
+     */
+    public ApiResponse asString () throws ApiException {
+      try (CloseableHttpResponse response = mHttpClient.execute(build())) {
+        HttpEntity entity = response.getEntity();
+        String body = entity == null ? null : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+        return new ApiResponse(response.getStatusLine().getStatusCode(), body);
+      } catch (IOException ioe) {
+        throw new ApiException(describe(), ioe);
+      }
+    }
+
+    /**
+     * Sends the request and gives access to the response body as a stream, which the caller must close
+     * @return streamed response
+     * @throws ApiException if the request could not be sent
+     */
+    public ApiStream asStream () throws ApiException {
+      HttpUriRequest request = build();
+      try {
+        return new ApiStream(request, mHttpClient.execute(request));
+      } catch (IOException ioe) {
+        throw new ApiException(describe(), ioe);
+      }
+    }
+
+    /**
+     * @return request method and url, for error messages
+     */
+    private String describe () {
+      return mMethod + " " + mUrl + (mQuery.isEmpty() ? "" : " " + mQuery);
+    }
+
+    /**
+     * Builds the HttpClient request
+     * @return request
+     * @throws ApiException if the url is invalid
+     */
+    private HttpUriRequest build () throws ApiException {
+      try {
+        URIBuilder uri = new URIBuilder(mUrl);
+        for (Map.Entry<String, String> parameter : mQuery.entrySet()) {
+          uri.addParameter(parameter.getKey(), parameter.getValue());
+        }
+        RequestBuilder builder = RequestBuilder.create(mMethod).setUri(uri.build());
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+          builder.setHeader(header.getKey(), header.getValue());
+        }
+        if (mBody != null) {
+          builder.setEntity(new StringEntity(mBody, ContentType.APPLICATION_JSON));
+        }
+        return builder.build();
+      } catch (URISyntaxException use) {
+        throw new ApiException(describe(), use);
+      }
+    }
+  }
+
+
+  /**
+   * A response whose body has been read entirely
+   */
+  public static class ApiResponse {
+
+    private final int mStatus;
+    private final String mBody;
+
+    private ApiResponse (int pStatus, String pBody) {
+      mStatus = pStatus;
+      mBody = pBody;
+    }
+
+    /**
+     * @return HTTP status code
+     */
+    public int getStatus () {
+      return mStatus;
+    }
+
+    /**
+     * @return response body, can be null
+     */
+    public String getBody () {
+      return mBody;
+    }
+  }
+
+
+  /**
+   * A response whose body is read as a stream; closing it returns the connection to the pool
+   */
+  public static class ApiStream implements Closeable {
+
+    private final HttpUriRequest mRequest;
+    private final CloseableHttpResponse mResponse;
+
+    private ApiStream (HttpUriRequest pRequest, CloseableHttpResponse pResponse) {
+      mRequest = pRequest;
+      mResponse = pResponse;
+    }
+
+    /**
+     * @return HTTP status code
+     */
+    public int getStatus () {
+      return mResponse.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * @return response body, or null if the response has no body
+     * @throws IOException if errors
+     */
+    public InputStream getBody () throws IOException {
+      return mResponse.getEntity() == null ? null : mResponse.getEntity().getContent();
+    }
+
+    /**
+     * Stops reading the response, dropping the connection instead of reading the rest of the body
+     */
+    public void abort () {
+      mRequest.abort();
+    }
+
+    @Override
+    public void close () throws IOException {
+      mResponse.close();
+    }
+  }
+
+}
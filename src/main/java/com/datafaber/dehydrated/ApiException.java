@@ -0,0 +1,18 @@
+package com.datafaber.dehydrated;
+
+/**
+ * Signals that a request to a provider API could not be sent or its response could not be read
+ */
+public class ApiException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * @param pRequest description of the failed request
+   * @param pCause underlying error
+   */
+  public ApiException (String pRequest, Throwable pCause) {
+    super("API request failed: " + pRequest, pCause);
+  }
+
+}
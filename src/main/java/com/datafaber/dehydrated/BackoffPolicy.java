@@ -0,0 +1,55 @@
+package com.datafaber.dehydrated;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter, used to space out the queries to a nameserver which doesn't answer as expected yet
+ */
+public class BackoffPolicy {
+
+  private final long mInitialDelayMsecs;
+  private final long mMaxDelayMsecs;
+  private final double mMultiplier;
+  private final double mJitter;
+
+
+  /**
+   * Builds a backoff policy
+   * @param pInitialDelayMsecs delay after the first try
+   * @param pMaxDelayMsecs upper bound of the delay between two tries
+   * @param pMultiplier factor by which the delay grows after every try
+   * @param pJitter fraction of the delay to randomize, between 0 and 1, so that pollers don't run in lockstep
+   */
+  public BackoffPolicy (long pInitialDelayMsecs, long pMaxDelayMsecs, double pMultiplier, double pJitter) {
+    if (pInitialDelayMsecs <= 0 || pMaxDelayMsecs < pInitialDelayMsecs || pMultiplier < 1.0 || pJitter < 0.0 || pJitter > 1.0) {
+      throw new IllegalArgumentException("invalid backoff policy: initial delay = " + pInitialDelayMsecs + ", max delay = " + pMaxDelayMsecs +
+              ", multiplier = " + pMultiplier + ", jitter = " + pJitter);
+    }
+    mInitialDelayMsecs = pInitialDelayMsecs;
+    mMaxDelayMsecs = pMaxDelayMsecs;
+    mMultiplier = pMultiplier;
+    mJitter = pJitter;
+  }
+
+
+  /**
+   * Computes the delay to wait after the given try
+   * @param pTry number of the try which just failed, starting at 1
+   * @return delay in milliseconds
+   */
+  public long delayMsecs (int pTry) {
+    double delay = mInitialDelayMsecs * Math.pow(mMultiplier, Math.max(0, pTry - 1));
+    delay = Math.min(delay, mMaxDelayMsecs);
+    if (mJitter > 0.0) {
+      delay *= 1.0 - mJitter + ThreadLocalRandom.current().nextDouble() * 2.0 * mJitter;
+    }
+    return Math.max(1L, Math.min((long)delay, mMaxDelayMsecs));
+  }
+
+
+  @Override
+  public String toString () {
+    return "initial delay = " + mInitialDelayMsecs + " msecs, max delay = " + mMaxDelayMsecs + " msecs, multiplier = " + mMultiplier + ", jitter = " + mJitter;
+  }
+
+}
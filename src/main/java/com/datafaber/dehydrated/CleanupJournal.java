@@ -0,0 +1,301 @@
+package com.datafaber.dehydrated;
+
+import com.datafaber.dehydrated.hooks.Challenge;
+import com.datafaber.dehydrated.hooks.ChallengeResult;
+import com.datafaber.dehydrated.hooks.Hook;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
+
+/**
+ * Journal of the cleanups whose verification is left to a detached job, so that clean_challenge returns to dehydrated
+ * as soon as the records are deleted
+ * <p>
+ * Every cleanup is written to its own file in the journal directory, then a new JVM is started to poll the nameservers
+ * until the records are gone. The job locks the files it works on and deletes them when done; it also picks up
+ * the files left behind by jobs which were killed, so no cleanup goes unverified
+ * <p>
+ * The journal is only kept under the configured cache directory, never in a directory shared with other users such as
+ * the temporary one, where anybody could plant jobs or point the log at another file; without a cache directory
+ * the cleanups are verified right away
+ */
+public class CleanupJournal {
+
+  // property name of the directory where caches are persisted, under which the journal is kept
+  private static final String CACHE_DIR = "CACHE_DIR";
+
+  // name of the journal directory, and extensions of its files
+  private static final String JOURNAL_DIRECTORY = "cleanups";
+  private static final String JOB_SUFFIX = ".job";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String LOG_FILE = "cleanups.log";
+
+  // separator between the fields of a challenge in a journal file, which cannot appear in any of them
+  private static final String FIELD_SEPARATOR = "\t";
+
+  // options of this JVM passed on to the job: memory settings and system properties, but none which opens a port
+  // (debugger, JMX) or a file that the job would then fight over with this JVM
+  private static final Pattern INHERITED_OPTION = Pattern.compile("-Xm[snx].*|-Xss.*|-XX:(Max|Min|Initial)RAM(Percentage)?=.*|-XX:Max(Metaspace|DirectMemory)Size=.*|-D.*");
+  private static final String EXCLUDED_PROPERTIES = "-Dcom.sun.management.";
+
+  // starts the job in a session of its own where available, so that it isn't killed along with dehydrated's process group
+  private static final String[] SETSID_PATHS = { "/usr/bin/setsid", "/bin/setsid" };
+
+  private final File mDirectory;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.CleanupJournal");
+
+
+  /**
+   * Builds the journal kept in the configured cache directory
+   * @param pConfiguration configuration properties
+   */
+  public CleanupJournal (Properties pConfiguration) {
+    String directory = pConfiguration.getProperty(CACHE_DIR);
+    mDirectory = (directory == null || "".equals(directory.trim())) ? null : new File(directory.trim(), JOURNAL_DIRECTORY);
+  }
+
+
+  /**
+   * Journals the verification of the given cleanups and starts a detached job to carry it out
+   * @param pChallenges challenges whose records were deleted
+   * @param pConfigurationPath path of the configuration file, passed to the job
+   * @return true if the job was started, false if the verification is still up to the caller
+   */
+  public boolean submit (List<Challenge> pChallenges, String pConfigurationPath) {
+    String ctx = "submit - ";
+    if (mDirectory == null) {
+      mLogger.info(ctx + CACHE_DIR + " is not set, so the cleanup of " + pChallenges + " is verified right away");
+      return false;
+    }
+    File job = null;
+    try {
+      job = write(pChallenges);
+      start(pConfigurationPath);
+      mLogger.info(ctx + "verification of " + pChallenges + " left to a detached job, journaled in " + job);
+      return true;
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException handing the verification of " + pChallenges + " to a detached job", ioe);
+      if (job != null && !job.delete()) {
+        mLogger.warn(ctx + "could not delete journal file " + job);
+      }
+      return false;
+    }
+  }
+
+
+  /**
+   * Verifies all the journaled cleanups which no other job is working on, concurrently, deleting each journal file
+   * once its cleanup has been verified either way
+   * @param pHook hook to verify the cleanups with
+   * @return true if all the records are gone from the nameservers, false otherwise
+   */
+  public boolean runJobs (Hook pHook) {
+    String ctx = "runJobs - ";
+    if (mDirectory == null) {
+      mLogger.info(ctx + CACHE_DIR + " is not set, so there is no journal");
+      return true;
+    }
+    File[] files = mDirectory.listFiles((pDirectory, pName) -> pName.endsWith(JOB_SUFFIX));
+    if (files == null || files.length == 0) {
+      mLogger.info(ctx + "no journaled cleanups in " + mDirectory);
+      return true;
+    }
+
+    // claim the jobs first, then verify them all at once
+    List<FileChannel> channels = new ArrayList<>();
+    List<File> jobs = new ArrayList<>();
+    List<CompletableFuture<List<ChallengeResult>>> verifications = new ArrayList<>();
+    try {
+      for (File file : files) {
+        FileChannel channel = claim(file);
+        if (channel == null) {
+          continue;
+        }
+        channels.add(channel);
+        List<Challenge> challenges = read(channel);
+        mLogger.info(ctx + "verifying the cleanup of " + challenges + " journaled in " + file);
+        jobs.add(file);
+        verifications.add(pHook.challengeVerifyDeletedAsync(challenges));
+      }
+
+      boolean result = true;
+      for (int i = 0; i < jobs.size(); i++) {
+        try {
+          for (ChallengeResult challengeResult : verifications.get(i).join()) {
+            if (!challengeResult.isSuccess()) {
+              mLogger.error(ctx + challengeResult);
+              result = false;
+            }
+          }
+        } catch (CompletionException ce) {
+          mLogger.error(ctx + "unexpected error verifying the cleanup journaled in " + jobs.get(i), ce.getCause());
+          result = false;
+        }
+        // verified either way, dehydrated has long moved on and nobody would retry it
+        Files.deleteIfExists(jobs.get(i).toPath());
+      }
+      return result;
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException processing the journal in " + mDirectory, ioe);
+      return false;
+    } finally {
+      for (FileChannel channel : channels) {
+        try {
+          channel.close();
+        } catch (IOException ioe) {
+          // the lock goes away with the JVM anyway
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Writes a journal file, atomically so that a job never reads it half-written
+   * @param pChallenges challenges to journal
+   * @return journal file
+   * @throws IOException if errors
+   */
+  private File write (List<Challenge> pChallenges) throws IOException {
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createDirectories(mDirectory.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } else {
+      Files.createDirectories(mDirectory.toPath());
+    }
+    File tempFile = File.createTempFile("cleanup-", TEMP_SUFFIX, mDirectory);
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+      for (Challenge challenge : pChallenges) {
+        writer.write(encode(challenge.getHostname()) + FIELD_SEPARATOR + encode(challenge.getToken()) + FIELD_SEPARATOR + encode(challenge.getValue()) + "\n");
+      }
+    }
+    String name = tempFile.getName();
+    File job = new File(mDirectory, name.substring(0, name.length() - TEMP_SUFFIX.length()) + JOB_SUFFIX);
+    Files.move(tempFile.toPath(), job.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    return job;
+  }
+
+
+  /**
+   * Starts a JVM running the journaled jobs, with the same classpath and memory settings as this one, without waiting for it
+   * @param pConfigurationPath path of the configuration file
+   * @throws IOException if the JVM could not be started
+   */
+  private void start (String pConfigurationPath) throws IOException {
+    List<String> command = new ArrayList<>();
+    for (String setsid : SETSID_PATHS) {
+      if (new File(setsid).canExecute()) {
+        command.add(setsid);
+        break;
+      }
+    }
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (INHERITED_OPTION.matcher(argument).matches() && !argument.startsWith(EXCLUDED_PROPERTIES)) {
+        command.add(argument);
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Main.class.getName());
+    command.add("-config");
+    command.add(pConfigurationPath);
+    command.add("-command");
+    command.add(Main.COMMAND_VERIFY_CLEAN_CHALLENGE);
+    // the output goes to a log next to the journal, so that the job doesn't hold on to dehydrated's pipes
+    new ProcessBuilder(command).
+            redirectErrorStream(true).
+            redirectOutput(ProcessBuilder.Redirect.appendTo(new File(mDirectory, LOG_FILE))).
+            start().
+            getOutputStream().close();
+  }
+
+
+  /**
+   * Locks a journal file, unless another job holds it or it's gone already
+   * @param pFile journal file
+   * @return channel holding the lock, or null if the file cannot be claimed
+   */
+  private FileChannel claim (File pFile) {
+    String ctx = "claim - ";
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(pFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      FileLock lock = channel.tryLock();
+      // the file may have been verified and deleted by the job which held the lock
+      if (lock != null && pFile.exists()) {
+        return channel;
+      }
+    } catch (IOException | OverlappingFileLockException e) {
+      mLogger.debug(ctx + "could not claim journal file " + pFile, e);
+    }
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ioe) {
+        // nothing else to do with this file
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Reads the challenges of a journal file through the channel holding its lock, since closing any other handle
+   * to the file could release the lock
+   * @param pChannel channel of the journal file
+   * @return challenges
+   * @throws IOException if errors
+   */
+  private static List<Challenge> read (FileChannel pChannel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int)pChannel.size());
+    while (buffer.hasRemaining() && pChannel.read(buffer) >= 0) {
+      // keep reading until the whole file is in
+    }
+    List<Challenge> challenges = new ArrayList<>();
+    for (String line : new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).split("\n")) {
+      String[] fields = line.split(FIELD_SEPARATOR, -1);
+      if (fields.length == 3) {
+        challenges.add(new Challenge(fields[0], decode(fields[1]), decode(fields[2])));
+      }
+    }
+    return challenges;
+  }
+
+
+  /**
+   * @param pField field of a challenge, can be null
+   * @return field as written to a journal file
+   */
+  private static String encode (String pField) {
+    return pField == null ? "" : pField;
+  }
+
+
+  /**
+   * @param pField field as written to a journal file
+   * @return field of a challenge, null if missing
+   */
+  private static String decode (String pField) {
+    return "".equals(pField) ? null : pField;
+  }
+
+}
@@ -3,19 +3,80 @@ package com.datafaber.dehydrated;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class DNSTools {
 
-  // timeout for single query
+  // timeout for single query, unless configured
   private static final int DNS_TIMEOUT_SECS = 5;
 
-  // max number of tries when polling
-  private static final int MAX_POLLING_TRIES = 10;
+  // unless configured, the polling deadline is this many times the resolution timeout
+  private static final int DEFAULT_DEADLINE_TIMEOUTS = 10;
+
+  // property names of the polling deadline and of the backoff between two queries to a nameserver
+  private static final String DNS_POLLING_DEADLINE_SECS = "DNS_POLLING_DEADLINE_SECS";
+  private static final String DNS_BACKOFF_INITIAL_MSECS = "DNS_BACKOFF_INITIAL_MSECS";
+  private static final String DNS_BACKOFF_MAX_MSECS = "DNS_BACKOFF_MAX_MSECS";
+  private static final String DNS_BACKOFF_MULTIPLIER = "DNS_BACKOFF_MULTIPLIER";
+  private static final String DNS_BACKOFF_JITTER = "DNS_BACKOFF_JITTER";
+
+  // property names and values for the polling mode
+  private static final String DNS_POLLING_MODE = "DNS_POLLING_MODE";
+  private static final String DNS_POLLING_MODE_PARALLEL = "parallel";
+  private static final String DNS_POLLING_MODE_SERIAL = "serial";
+
+  // property names and values for the propagation strategy
+  private static final String DNS_PROPAGATION_WAIT_SECS = "DNS_PROPAGATION_WAIT_SECS";
+  private static final String DNS_PROPAGATION_STRATEGY = "DNS_PROPAGATION_STRATEGY";
+  private static final String DNS_PROPAGATION_STRATEGY_ADAPTIVE = "adaptive";
+  private static final String DNS_PROPAGATION_STRATEGY_FIXED = "fixed";
+
+  // property names and values for the discovery of the authoritative nameservers
+  private static final String DNS_NS_DISCOVERY = "DNS_NS_DISCOVERY";
+  private static final String DNS_NS_DISCOVERY_SOA = "soa";
+  private static final String DNS_NS_DISCOVERY_LEGACY = "legacy";
+
+  // property name and default of the upper bound to the time the nameservers are cached, 0 to disable caching
+  private static final String DNS_NS_CACHE_MAX_TTL_SECS = "DNS_NS_CACHE_MAX_TTL_SECS";
+  private static final String DNS_NS_CACHE_MAX_TTL_SECS_DEFAULT = "86400";
+
+  // how long a hostname whose nameservers could not be found is remembered, so that it isn't looked up again right away
+  private static final long NEGATIVE_CACHE_TTL_MSECS = 60000L;
+
+  // prefixes of the cache keys of the nameserver sets, by zone apex, and of the zone apexes, by hostname
+  private static final String ZONE_KEY_PREFIX = "zone ";
+  private static final String HOST_KEY_PREFIX = "host ";
+
+  // property names and values for the way the propagation of a change is checked, and of the primary nameserver
+  private static final String DNS_PROPAGATION_CHECK = "DNS_PROPAGATION_CHECK";
+  private static final String DNS_PROPAGATION_CHECK_TXT = "txt";
+  private static final String DNS_PROPAGATION_CHECK_SOA = "soa";
+  private static final String DNS_PROPAGATION_CHECK_SOA_TXT = "soa-txt";
+  private static final String DNS_PRIMARY_NAMESERVER = "DNS_PRIMARY_NAMESERVER";
+
+  // default delay before probing again a nameserver which hasn't got the expected answer yet, when adapting to the propagation
+  private static final long ADAPTIVE_INITIAL_DELAY_MSECS = 1000L;
+  private static final double ADAPTIVE_MULTIPLIER = 2.0;
+  private static final double ADAPTIVE_JITTER = 0.2;
 
   private Resolver mResolver;
+  private final ResolverPool mResolverPool;
+  private final boolean mParallelPolling;
+  private final boolean mSoaDiscovery;
+  private final String mPropagationCheck;
+  private final String mPrimaryNameserver;
+  private final TtlCache mNameserverCache;
+  private final long mNameserverCacheMaxTtlMsecs;
+  private final boolean mAdaptivePropagation;
+  private final int mPropagationWaitSecs;
+  private final Properties mPollingConfiguration;
 
   private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.DNSTools");
 
@@ -25,11 +86,83 @@ public class DNSTools {
    * @param pResolverHostname hostname of a resolver
    */
   public DNSTools (String pResolverHostname) {
+    this(pResolverHostname, new Properties());
+  }
+
+
+  /**
+   * Builds an instance of this class which will use the given hostname as resolver and the given configuration
+   * @param pResolverHostname hostname of a resolver
+   * @param pConfiguration configuration properties
+   */
+  public DNSTools (String pResolverHostname, Properties pConfiguration) {
     try {
       mResolver = new SimpleResolver(pResolverHostname);
     } catch (UnknownHostException uhe) {
       throw new RuntimeException(uhe);
     }
+    mResolverPool = new ResolverPool(pConfiguration, DNS_TIMEOUT_SECS);
+    mParallelPolling = DNS_POLLING_MODE_PARALLEL.equals(getChoice(pConfiguration, DNS_POLLING_MODE, DNS_POLLING_MODE_PARALLEL, DNS_POLLING_MODE_SERIAL));
+    mSoaDiscovery = DNS_NS_DISCOVERY_SOA.equals(getChoice(pConfiguration, DNS_NS_DISCOVERY, DNS_NS_DISCOVERY_SOA, DNS_NS_DISCOVERY_LEGACY));
+    mNameserverCache = TtlCache.fromConfiguration(pConfiguration, "nameservers");
+    mNameserverCacheMaxTtlMsecs = Long.parseLong(pConfiguration.getProperty(DNS_NS_CACHE_MAX_TTL_SECS, DNS_NS_CACHE_MAX_TTL_SECS_DEFAULT)) * 1000L;
+    mPropagationCheck = getChoice(pConfiguration, DNS_PROPAGATION_CHECK, DNS_PROPAGATION_CHECK_TXT, DNS_PROPAGATION_CHECK_SOA, DNS_PROPAGATION_CHECK_SOA_TXT);
+    String primary = pConfiguration.getProperty(DNS_PRIMARY_NAMESERVER, "").trim();
+    mPrimaryNameserver = "".equals(primary) ? null : primary;
+    mAdaptivePropagation = DNS_PROPAGATION_STRATEGY_ADAPTIVE.equals(getChoice(pConfiguration, DNS_PROPAGATION_STRATEGY, DNS_PROPAGATION_STRATEGY_ADAPTIVE, DNS_PROPAGATION_STRATEGY_FIXED));
+    mPropagationWaitSecs = Integer.parseInt(pConfiguration.getProperty(DNS_PROPAGATION_WAIT_SECS, "0"));
+    // the defaults of the polling limits depend on the resolution timeout given to each polling, so they're read then
+    mPollingConfiguration = new Properties();
+    for (String name : Arrays.asList(DNS_POLLING_DEADLINE_SECS, DNS_BACKOFF_INITIAL_MSECS, DNS_BACKOFF_MAX_MSECS, DNS_BACKOFF_MULTIPLIER, DNS_BACKOFF_JITTER)) {
+      if (pConfiguration.getProperty(name) != null) {
+        mPollingConfiguration.setProperty(name, pConfiguration.getProperty(name).trim());
+      }
+    }
+    // fail now rather than at the first polling if the limits are invalid
+    buildBackoffPolicy(1);
+    pollingDeadlineMsecs(1);
+  }
+
+
+  /**
+   * Reads a property which can only take one of the given values
+   * @param pConfiguration configuration properties
+   * @param pName property name
+   * @param pDefault value to use if the property isn't set, always allowed
+   * @param pAllowed other allowed values
+   * @return property value
+   */
+  private static String getChoice (Properties pConfiguration, String pName, String pDefault, String... pAllowed) {
+    String value = pConfiguration.getProperty(pName, pDefault);
+    if (!pDefault.equals(value) && !Arrays.asList(pAllowed).contains(value)) {
+      throw new IllegalArgumentException("invalid value for " + pName + ": " + value);
+    }
+    return value;
+  }
+
+
+  /**
+   * Waits for the changes to the challenge records to propagate, before polling the nameservers
+   * <p>
+   * With the fixed strategy this waits for the whole configured propagation time;
+   * with the adaptive strategy this returns immediately, since the polling starts right away
+   * and the propagation time is only an upper bound to how long the nameservers are probed
+   */
+  public void waitForPropagation () {
+    if (!mAdaptivePropagation) {
+      mLogger.info("waitForPropagation - waiting " + mPropagationWaitSecs + " seconds for record propagation");
+      waitFor(mPropagationWaitSecs);
+    }
+  }
+
+
+  /**
+   * Pins the given nameserver to pre-resolved addresses, so that polling it never resolves its hostname
+   * @param pNameserver nameserver hostname
+   * @param pAddresses IPv4 and/or IPv6 addresses of the nameserver
+   */
+  public void pinNameserver (String pNameserver, InetAddress... pAddresses) {
+    mResolverPool.pin(pNameserver, pAddresses);
   }
 
 
@@ -39,11 +172,134 @@ public class DNSTools {
    * @return authoritative nameservers for the domain, null if not found
    */
   public String[] findAuthoritativeNameservers (String pHostname) {
-    String ctx = "findAuthoritativeNameservers - ";
+    NameserverSet nameservers = findNameserverSet(pHostname);
+    return nameservers == null ? null : nameservers.getNameservers();
+  }
+
+
+  /**
+   * Retrieves the authoritative nameservers of the zone to which the given hostname belongs, with their glue addresses,
+   * which are then used to poll the nameservers without resolving their hostnames
+   * <p>
+   * The nameservers are cached by zone apex for as long as their NS records live, and the apex by hostname,
+   * so that the names of a certificate sharing a zone, and the deploy and clean of each name, find them only once
+   * @param pHostname hostname
+   * @return authoritative nameservers for the zone, null if not found
+   */
+  public NameserverSet findNameserverSet (String pHostname) {
+    String ctx = "findNameserverSet - ";
     if (pHostname == null || "".equals(pHostname)) {
       return null;
     }
 
+    String hostKey = HOST_KEY_PREFIX + NameserverSet.normalize(pHostname);
+    NameserverSet nameservers = null;
+    String zone = mNameserverCache.get(hostKey);
+    if ("".equals(zone)) {
+      mLogger.debug(ctx + "nameservers for " + pHostname + " recently not found, not looking them up again");
+      return null;
+    } else if (zone != null) {
+      nameservers = getCachedNameservers(zone);
+    }
+
+    if (nameservers == null) {
+      nameservers = mSoaDiscovery ? discoverNameservers(pHostname) : discoverNameserversByLabels(pHostname);
+      if (nameservers == null) {
+        mLogger.warn(ctx + "could not find any authoritative nameserver for " + pHostname);
+        mNameserverCache.put(hostKey, "", Math.min(NEGATIVE_CACHE_TTL_MSECS, mNameserverCacheMaxTtlMsecs));
+        return null;
+      }
+      long ttlMsecs = Math.min(nameservers.getTtlSecs() * 1000L, mNameserverCacheMaxTtlMsecs);
+      mNameserverCache.put(ZONE_KEY_PREFIX + nameservers.getZone(), nameservers.toCacheValue(), ttlMsecs);
+      mNameserverCache.put(hostKey, nameservers.getZone(), ttlMsecs);
+    }
+    for (String nameserver : nameservers.getNameservers()) {
+      mResolverPool.addGlue(nameserver, nameservers.getGlue(nameserver));
+    }
+    mLogger.debug(ctx + "found nameservers for " + pHostname + ": " + nameservers);
+    return nameservers;
+  }
+
+
+  /**
+   * Finds the zone cut from the answer to a single NS query: the hostname is either the apex of its zone,
+   * and the answer holds the NS records, or the authority section holds the SOA record of the zone apex,
+   * whose NS records are then queried
+   * @param pHostname hostname
+   * @return authoritative nameservers for the zone, null if not found
+   */
+  private NameserverSet discoverNameservers (String pHostname) {
+    String ctx = "discoverNameservers - ";
+    Name name;
+    try {
+      name = Name.fromString(pHostname, Name.root);
+    } catch (TextParseException tpe) {
+      mLogger.error(ctx + "TextParseException parsing " + pHostname, tpe);
+      return null;
+    }
+
+    // every iteration moves to a strictly shorter name, so this never loops forever
+    while (name.labels() > 1) {
+      Message response = query(name, Type.NS);
+      if (response == null) {
+        return null;
+      }
+      int rcode = response.getRcode();
+      if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+        mLogger.warn(ctx + "got " + Rcode.string(rcode) + " querying nameservers for " + name);
+        return null;
+      }
+
+      NameserverSet nameservers = toNameserverSet(name, response);
+      if (nameservers != null) {
+        return nameservers;
+      }
+
+      // the name may be a CNAME, whose answer describes the zone of the target rather than the zone of the name
+      Name apex = null;
+      if (!hasRecord(response, Section.ANSWER, name, Type.CNAME)) {
+        for (Record record : response.getSectionArray(Section.AUTHORITY)) {
+          if (record.getType() == Type.SOA && name.subdomain(record.getName()) && !name.equals(record.getName())) {
+            apex = record.getName();
+            break;
+          }
+        }
+      }
+      if (apex != null) {
+        // another name of the same zone may have found its nameservers already
+        nameservers = getCachedNameservers(NameserverSet.normalize(apex.toString()));
+        if (nameservers != null) {
+          return nameservers;
+        }
+      }
+      name = apex != null ? apex : new Name(name, 1);
+    }
+    return null;
+  }
+
+
+  /**
+   * Retrieves the cached nameservers of the given zone
+   * @param pZone zone apex, normalized
+   * @return nameservers of the zone, or null if not cached
+   */
+  private NameserverSet getCachedNameservers (String pZone) {
+    NameserverSet nameservers = NameserverSet.fromCacheValue(mNameserverCache.get(ZONE_KEY_PREFIX + pZone));
+    if (nameservers != null) {
+      mLogger.debug("getCachedNameservers - using cached nameservers for zone " + pZone);
+    }
+    return nameservers;
+  }
+
+
+  /**
+   * Finds the nameservers by querying the NS records of the hostname, then of its parent domains until some are found
+   * @param pHostname hostname
+   * @return authoritative nameservers for the zone, null if not found
+   */
+  private NameserverSet discoverNameserversByLabels (String pHostname) {
+    String ctx = "discoverNameserversByLabels - ";
+
     // the given hostname may be a CNAME, for which a "ns" query won't work
     // if that's the case, keep removing subdomains until some nameservers are found
     String hostname = pHostname;
@@ -60,126 +316,612 @@ public class DNSTools {
         }
       } catch (TextParseException tpe) {
         mLogger.error(ctx + "TextParseException querying for " + hostname, tpe);
+        return null;
       }
     }
 
     if (nameservers == null) {
-      mLogger.warn(ctx + "could not find any authoritative nameserver for " + pHostname);
       return null;
     }
 
     String[] result = new String[nameservers.length];
+    long ttlSecs = Long.MAX_VALUE;
     for (int i = 0; i < nameservers.length; i++) {
       result[i] = ((NSRecord)nameservers[i]).getTarget().toString();
+      ttlSecs = Math.min(ttlSecs, nameservers[i].getTTL());
     }
 
-    return result;
+    return new NameserverSet(NameserverSet.normalize(hostname), result, null, ttlSecs);
   }
 
 
   /**
-   * Polls the given nameservers for the presence of a TXT record having the given value
-   * @param pRecordValue value of TXT record
+   * Builds the nameserver set of the given zone out of the NS records and the glue found in a response
+   * @param pZone zone apex
+   * @param pResponse response to a NS query
+   * @return nameservers of the zone, or null if the response has no NS records for the zone
+   */
+  private static NameserverSet toNameserverSet (Name pZone, Message pResponse) {
+    List<String> nameservers = new ArrayList<>();
+    long ttlSecs = Long.MAX_VALUE;
+    for (Record record : pResponse.getSectionArray(Section.ANSWER)) {
+      if (record.getType() == Type.NS && pZone.equals(record.getName())) {
+        nameservers.add(((NSRecord)record).getTarget().toString());
+        ttlSecs = Math.min(ttlSecs, record.getTTL());
+      }
+    }
+    if (nameservers.isEmpty()) {
+      return null;
+    }
+
+    Map<String, List<InetAddress>> glue = new HashMap<>();
+    for (Record record : pResponse.getSectionArray(Section.ADDITIONAL)) {
+      InetAddress address = null;
+      if (record.getType() == Type.A) {
+        address = ((ARecord)record).getAddress();
+      } else if (record.getType() == Type.AAAA) {
+        address = ((AAAARecord)record).getAddress();
+      }
+      String nameserver = NameserverSet.normalize(record.getName().toString());
+      if (address != null && nameservers.stream().anyMatch(n -> NameserverSet.normalize(n).equals(nameserver))) {
+        glue.computeIfAbsent(nameserver, n -> new ArrayList<>()).add(address);
+      }
+    }
+    Map<String, InetAddress[]> glueAddresses = new HashMap<>();
+    for (Map.Entry<String, List<InetAddress>> entry : glue.entrySet()) {
+      glueAddresses.put(entry.getKey(), entry.getValue().toArray(new InetAddress[0]));
+    }
+
+    return new NameserverSet(NameserverSet.normalize(pZone.toString()), nameservers.toArray(new String[0]), glueAddresses, ttlSecs);
+  }
+
+
+  /**
+   * Checks whether the given section of a response holds a record of the given name and type
+   * @param pResponse response
+   * @param pSection section
+   * @param pName record name
+   * @param pType record type
+   * @return true if such a record is found
+   */
+  private static boolean hasRecord (Message pResponse, int pSection, Name pName, int pType) {
+    for (Record record : pResponse.getSectionArray(pSection)) {
+      if (record.getType() == pType && pName.equals(record.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Sends a query to the recursive resolver
+   * @param pName name to query
+   * @param pType record type
+   * @return response, or null if errors
+   */
+  private Message query (Name pName, int pType) {
+    String ctx = "query - ";
+    try {
+      return mResolver.send(Message.newQuery(Record.newRecord(pName, pType, DClass.IN)));
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException querying " + Type.string(pType) + " records for " + pName, ioe);
+      return null;
+    }
+  }
+
+
+  /**
+   * Polls the given nameservers for the presence of a TXT record with the given name
+   * @param pRecordName name of TXT record
+   * @param pNameservers nameservers to poll
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return true if the record was found in ALL the nameservers, false if at least one nameserver doesn't have the record
+   */
+  public boolean pollNameserversForChallengeRecordPresence (String pRecordName, String[] pNameservers, int pDnsResolutionTimeoutSecs) {
+    return pollNameserversForChallengeRecordPresence(pRecordName, null, pNameservers, pDnsResolutionTimeoutSecs);
+  }
+
+
+  /**
+   * Polls the given nameservers for the absence of a TXT record with the given name
+   * @param pRecordName name of TXT record
+   * @param pNameservers nameservers to poll
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return true if the record was absent from ALL the nameservers, false if at least one nameserver still has the record
+   */
+  public boolean pollNameserversForChallengeRecordAbsence (String pRecordName, String[] pNameservers, int pDnsResolutionTimeoutSecs) {
+    return pollNameserversForChallengeRecordAbsence(pRecordName, null, pNameservers, pDnsResolutionTimeoutSecs);
+  }
+
+
+  /**
+   * Polls the given nameservers for the presence of a TXT record with the given name and value
+   * @param pRecordName name of TXT record
+   * @param pRecordValue expected value of TXT record, null to accept any value
    * @param pNameservers nameservers to poll
    * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
    * @return true if the record was found in ALL the nameservers, false if at least one nameserver doesn't have the record
    */
-  public boolean pollNameserversForChallengeRecordPresence (String pRecordValue, String[] pNameservers, int pDnsResolutionTimeoutSecs) {
-    return pollNameserversForChallengeRecord(pRecordValue, pNameservers, pDnsResolutionTimeoutSecs, true);
+  public boolean pollNameserversForChallengeRecordPresence (String pRecordName, String pRecordValue, String[] pNameservers, int pDnsResolutionTimeoutSecs) {
+    return pollNameserversForChallengeRecord(pRecordName, pRecordValue, pNameservers, pollingDeadline(pDnsResolutionTimeoutSecs), pDnsResolutionTimeoutSecs, true);
   }
 
 
   /**
-   * Polls the given nameservers for the absence of a TXT record having the given value
-   * @param pRecordValue value of TXT record
+   * Polls the given nameservers for the absence of a TXT record with the given name and value
+   * @param pRecordName name of TXT record
+   * @param pRecordValue value of TXT record which must be gone, null if no value at all may be left
    * @param pNameservers nameservers to poll
    * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
    * @return true if the record was absent from ALL the nameservers, false if at least one nameserver still has the record
    */
-  public boolean pollNameserversForChallengeRecordAbsence (String pRecordValue, String[] pNameservers, int pDnsResolutionTimeoutSecs) {
-    return pollNameserversForChallengeRecord(pRecordValue, pNameservers, pDnsResolutionTimeoutSecs, false);
+  public boolean pollNameserversForChallengeRecordAbsence (String pRecordName, String pRecordValue, String[] pNameservers, int pDnsResolutionTimeoutSecs) {
+    return pollNameserversForChallengeRecord(pRecordName, pRecordValue, pNameservers, pollingDeadline(pDnsResolutionTimeoutSecs), pDnsResolutionTimeoutSecs, false);
+  }
+
+
+  /**
+   * Polls the nameservers of a zone until the creation of a TXT record has propagated to all of them,
+   * as detected by the configured propagation check
+   * @param pRecordName name of TXT record
+   * @param pRecordValue expected value of TXT record, null to accept any value
+   * @param pNameservers nameservers of the zone to which the record belongs
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return true if the record has propagated to ALL the nameservers, false otherwise
+   */
+  public boolean pollNameserversForChallengeRecordPresence (String pRecordName, String pRecordValue, NameserverSet pNameservers, int pDnsResolutionTimeoutSecs) {
+    return pollNameserversForPropagation(pRecordName, pRecordValue, pNameservers, pDnsResolutionTimeoutSecs, true);
+  }
+
+
+  /**
+   * Polls the nameservers of a zone until the deletion of a TXT record has propagated to all of them,
+   * as detected by the configured propagation check
+   * @param pRecordName name of TXT record
+   * @param pRecordValue value of TXT record which must be gone, null if no value at all may be left
+   * @param pNameservers nameservers of the zone to which the record belongs
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return true if the deletion has propagated to ALL the nameservers, false otherwise
+   */
+  public boolean pollNameserversForChallengeRecordAbsence (String pRecordName, String pRecordValue, NameserverSet pNameservers, int pDnsResolutionTimeoutSecs) {
+    return pollNameserversForPropagation(pRecordName, pRecordValue, pNameservers, pDnsResolutionTimeoutSecs, false);
+  }
+
+
+  /**
+   * Polls the nameservers of a zone until a change to a TXT record has propagated to all of them
+   * <p>
+   * With the SOA checks the serial of the primary nameserver, read right after the change, is the one all the nameservers
+   * must reach, and the SOA-gated TXT check then also queries the TXT record on each nameserver which reached it;
+   * only the TXT record is polled when the SOA checks are off or the primary serial cannot be read
+   * @param pRecordName name of TXT record
+   * @param pRecordValue value of TXT record, null to match any value
+   * @param pNameservers nameservers of the zone to which the record belongs
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @param pCheckPresence true if the record was created, false if it was deleted
+   * @return true if the change has propagated to ALL the nameservers, false otherwise
+   */
+  private boolean pollNameserversForPropagation (String pRecordName, String pRecordValue, NameserverSet pNameservers, int pDnsResolutionTimeoutSecs, boolean pCheckPresence) {
+    String ctx = "pollNameserversForPropagation - ";
+    if (pNameservers == null) {
+      return false;
+    }
+    // reading the primary serial counts against the deadline too
+    long deadline = pollingDeadline(pDnsResolutionTimeoutSecs);
+    if (!DNS_PROPAGATION_CHECK_TXT.equals(mPropagationCheck)) {
+      long serial = findPrimarySerial(pNameservers, deadline);
+      if (serial >= 0) {
+        String recordName = DNS_PROPAGATION_CHECK_SOA_TXT.equals(mPropagationCheck) ? pRecordName : null;
+        return pollNameserversForZoneSerial(pNameservers, serial, recordName, pRecordValue, deadline, pDnsResolutionTimeoutSecs, pCheckPresence);
+      }
+      mLogger.warn(ctx + "could not read the serial of the primary nameserver of " + pNameservers.getZone() + ", polling the TXT record instead");
+    }
+    return pollNameserversForChallengeRecord(pRecordName, pRecordValue, pNameservers.getNameservers(), deadline, pDnsResolutionTimeoutSecs, pCheckPresence);
   }
 
 
   /**
-   * Polls the given nameservers for the presence or absence of a TXT record having the given value
-   * @param pRecordValue value of TXT record
+   * Polls the given nameservers for the presence or absence of a TXT record with the given name and value
+   * @param pRecordName name of TXT record
+   * @param pRecordValue value of TXT record, null to match any value
    * @param pNameservers nameservers to poll
+   * @param pDeadline time after which no query is sent any more
    * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
    * @param pCheckPresence true to poll for presence, false to poll for absence
    * @return when polling for presence, true if the record was found in ALL the nameservers, false if at least one nameserver doesn't have the record
    *         when polling for absence, true if the record was absent from ALL the nameservers, false if at least one nameserver still has the record
    */
-  private boolean pollNameserversForChallengeRecord (String pRecordValue, String[] pNameservers, int pDnsResolutionTimeoutSecs, boolean pCheckPresence) {
+  private boolean pollNameserversForChallengeRecord (String pRecordName, String pRecordValue, String[] pNameservers, long pDeadline, int pDnsResolutionTimeoutSecs, boolean pCheckPresence) {
     String ctx = "pollNameserversForChallengeRecord - ";
-    if (pRecordValue == null || "".equals(pRecordValue)) {
+    if (pRecordName == null || "".equals(pRecordName)) {
       return false;
     }
     if (pNameservers == null || pNameservers.length == 0) {
       return false;
     }
 
-    boolean gotAnswer = false;
+    mLogger.info(ctx + "begin polling nameservers for challenge record '" + pRecordName + "'" + (pRecordValue == null ? "" : " with value '" + pRecordValue + "'")
+            + " - nameservers = " + Arrays.toString(pNameservers));
+    boolean gotAnswer = pollNameservers(pNameservers, pDeadline, pDnsResolutionTimeoutSecs, nameserver -> checkChallengeRecord(pRecordName, pRecordValue, nameserver, pCheckPresence));
+    mLogger.info(ctx + "done polling nameservers for challenge record - got answer = " + gotAnswer);
+
+    return gotAnswer;
+  }
 
+
+  /**
+   * Polls the given nameservers until their SOA serial for the zone is at least the given one and, when a TXT record
+   * is given, until they also have or no longer have that record
+   * <p>
+   * The TXT record is only queried on a nameserver which has reached the serial, whose answer then tells a change
+   * that hasn't propagated yet from one that went wrong, such as an absence still cached from before the change
+   * @param pNameservers nameservers of the zone
+   * @param pSerial serial to reach
+   * @param pRecordName name of TXT record, null to check the serial only
+   * @param pRecordValue value of TXT record, null to match any value
+   * @param pDeadline time after which no query is sent any more
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @param pCheckPresence true to check for the presence of the TXT record, false to check for its absence
+   * @return true if ALL the nameservers reached the serial and gave the expected answer for the TXT record, false otherwise
+   */
+  private boolean pollNameserversForZoneSerial (NameserverSet pNameservers, long pSerial, String pRecordName, String pRecordValue, long pDeadline, int pDnsResolutionTimeoutSecs, boolean pCheckPresence) {
+    String ctx = "pollNameserversForZoneSerial - ";
+    String zone = pNameservers.getZone();
+    mLogger.info(ctx + "begin polling nameservers for serial " + pSerial + " of zone " + zone
+            + (pRecordName == null ? "" : " and challenge record '" + pRecordName + "'") + " - nameservers = " + Arrays.toString(pNameservers.getNameservers()));
+    boolean gotAnswer = pollNameservers(pNameservers.getNameservers(), pDeadline, pDnsResolutionTimeoutSecs, nameserver -> {
+      SOARecord soa = querySoa(zone, nameserver);
+      if (soa == null || !isSerialAtLeast(soa.getSerial(), pSerial)) {
+        return false;
+      }
+      // the TXT query is a second one, which is not sent once the deadline has passed during the first
+      return pRecordName == null || (System.currentTimeMillis() < pDeadline && checkChallengeRecord(pRecordName, pRecordValue, nameserver, pCheckPresence));
+    });
+    mLogger.info(ctx + "done polling nameservers for serial of zone " + zone + " - got answer = " + gotAnswer);
+    return gotAnswer;
+  }
+
+
+  /**
+   * Reads the current SOA serial of the primary nameserver of a zone, either the configured one
+   * or the one named by the SOA record of the zone
+   * @param pNameservers nameservers of the zone
+   * @param pDeadline time after which no query is sent any more
+   * @return serial, or -1 if it could not be read
+   */
+  private long findPrimarySerial (NameserverSet pNameservers, long pDeadline) {
+    String ctx = "findPrimarySerial - ";
+    String zone = pNameservers.getZone();
     try {
-      mLogger.info(ctx + "begin polling nameservers for challenge record '" + pRecordValue + "' - nameservers = " + Arrays.toString(pNameservers));
-      int cntTries = 1;
-      while (!gotAnswer && cntTries <= MAX_POLLING_TRIES) {
-        int cntAnswers = 0;
-        for (String nameserver : pNameservers) {
-          mLogger.info(ctx + "polling nameserver " + nameserver + " - try " + cntTries);
-          Record[] records = resolveName(pRecordValue, nameserver);
-          if (pCheckPresence) {
-            // checking presence, so no result means we have to try again
-            if (records == null || records.length == 0) {
-              // this nameserver didn't have the answer, so there's no point in querying the others
-              // wait for a while, then try again
-              mLogger.info(ctx + "answer not found on nameserver " + nameserver);
-              waitFor(pDnsResolutionTimeoutSecs);
-            } else {
-              mLogger.info(ctx + "got expected answer from nameserver " + nameserver);
-              cntAnswers++;
-            }
-          } else {
-            // checking absence, so we actually want no result from lookup()
-            if (records != null && records.length > 0) {
-              mLogger.info(ctx + "answer not found on nameserver " + nameserver);
-              waitFor(pDnsResolutionTimeoutSecs);
-            } else {
-              mLogger.info(ctx + "got expected answer from nameserver " + nameserver);
-              cntAnswers++;
-            }
-          }
+      String primary = mPrimaryNameserver;
+      for (int i = 0; primary == null && i < pNameservers.getNameservers().length && System.currentTimeMillis() < pDeadline; i++) {
+        SOARecord soa = querySoa(zone, pNameservers.getNameservers()[i]);
+        if (soa != null) {
+          primary = soa.getHost().toString();
         }
-        cntTries++;
-        gotAnswer = (cntAnswers == pNameservers.length);
       }
-      mLogger.info(ctx + "done polling nameservers for challenge record - got answer = " + gotAnswer);
+      if (primary == null || System.currentTimeMillis() >= pDeadline) {
+        return -1L;
+      }
+      SOARecord soa = querySoa(zone, primary);
+      if (soa == null) {
+        return -1L;
+      }
+      mLogger.debug(ctx + "serial of zone " + zone + " on primary nameserver " + primary + " = " + soa.getSerial());
+      return soa.getSerial();
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException reading the serial of zone " + zone, ioe);
+      return -1L;
+    }
+  }
+
+
+  /**
+   * Compares two SOA serials using the serial number arithmetic of RFC 1982, so that a serial which wrapped around
+   * past 2^32 still counts as more recent
+   * @param pSerial serial to check
+   * @param pReference reference serial
+   * @return true if the serial is equal to or more recent than the reference
+   */
+  static boolean isSerialAtLeast (long pSerial, long pReference) {
+    long distance = (pSerial - pReference) & 0xFFFFFFFFL;
+    return distance < 0x80000000L;
+  }
+
+
+  /**
+   * Polls all the given nameservers until each of them passes the given check or the polling deadline passes
+   * @param pNameservers nameservers to poll
+   * @param pDeadline time after which no query is sent any more
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @param pCheck check to apply to each nameserver
+   * @return true if ALL the nameservers passed the check, false otherwise
+   */
+  private boolean pollNameservers (String[] pNameservers, long pDeadline, int pDnsResolutionTimeoutSecs, NameserverCheck pCheck) {
+    String ctx = "pollNameservers - ";
+    BackoffPolicy backoff = buildBackoffPolicy(pDnsResolutionTimeoutSecs);
+    // no query is sent after the deadline, so only the ones already sent may outlive it, by at most their timeout
+    mLogger.info(ctx + "polling for at most " + Math.max(0L, pDeadline - System.currentTimeMillis()) + " msecs, plus "
+            + mResolverPool.getMaxQueryMsecs() + " msecs for the queries sent right before the deadline - " + backoff);
+
+    // a single deadline covers all the nameservers, whether they're polled in parallel or one after another
+    if (mParallelPolling) {
+      return pollNameserversInParallel(pNameservers, pDeadline, backoff, pCheck);
+    }
+    for (String nameserver : pNameservers) {
+      if (!pollNameserver(nameserver, pDeadline, backoff, pCheck)) {
+        // this nameserver never converged, so there's no point in querying the others
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Polls all the given nameservers at the same time, each one independently of the others
+   * @param pNameservers nameservers to poll
+   * @param pDeadline time after which no nameserver is queried any more
+   * @param pBackoff delays between two queries to the same nameserver
+   * @param pCheck check to apply to each nameserver
+   * @return true if ALL the nameservers passed the check before the deadline, false otherwise
+   */
+  private boolean pollNameserversInParallel (String[] pNameservers, long pDeadline, BackoffPolicy pBackoff, NameserverCheck pCheck) {
+    String ctx = "pollNameserversInParallel - ";
+    List<Future<Boolean>> polls = new ArrayList<>(pNameservers.length);
+    for (String nameserver : pNameservers) {
+      polls.add(TaskExecutors.queries().submit(() -> pollNameserver(nameserver, pDeadline, pBackoff, pCheck)));
+    }
+
+    // queries sent right before the deadline are given the time to complete
+    long deadline = pDeadline + mResolverPool.getMaxQueryMsecs();
+    boolean gotAnswer = true;
+    try {
+      for (int i = 0; i < polls.size() && gotAnswer; i++) {
+        long remainingMsecs = Math.max(0L, deadline - System.currentTimeMillis());
+        gotAnswer = polls.get(i).get(remainingMsecs, TimeUnit.MILLISECONDS);
+      }
+    } catch (TimeoutException te) {
+      mLogger.warn(ctx + "deadline passed before all nameservers answered as expected");
+      gotAnswer = false;
+    } catch (ExecutionException ee) {
+      mLogger.error(ctx + "ExecutionException while polling nameservers", ee.getCause());
+      gotAnswer = false;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      gotAnswer = false;
+    }
+
+    // as soon as one nameserver fails the whole polling fails, so stop the others
+    if (!gotAnswer) {
+      for (Future<Boolean> poll : polls) {
+        poll.cancel(true);
+      }
+    }
+    return gotAnswer;
+  }
+
+
+  /**
+   * Polls a single nameserver until it passes the given check or the deadline passes
+   * @param pNameserver nameserver to poll
+   * @param pDeadline time after which the nameserver is not queried any more
+   * @param pBackoff delays between two queries to the nameserver
+   * @param pCheck check to apply to the nameserver
+   * @return true if the nameserver passed the check, false otherwise
+   */
+  private boolean pollNameserver (String pNameserver, long pDeadline, BackoffPolicy pBackoff, NameserverCheck pCheck) {
+    String ctx = "pollNameserver - ";
+    try {
+      for (int cntTries = 1; !Thread.currentThread().isInterrupted(); cntTries++) {
+        // when polling one nameserver after another, the deadline may have passed before this one's turn
+        if (System.currentTimeMillis() >= pDeadline) {
+          mLogger.warn(ctx + "deadline passed, nameserver " + pNameserver + " not queried for try " + cntTries);
+          break;
+        }
+        mLogger.info(ctx + "polling nameserver " + pNameserver + " - try " + cntTries);
+        if (pCheck.check(pNameserver)) {
+          mLogger.info(ctx + "got expected answer from nameserver " + pNameserver);
+          return true;
+        }
+        mLogger.info(ctx + "answer not found on nameserver " + pNameserver);
+        // wait for a while, then try again
+        long remainingMsecs = pDeadline - System.currentTimeMillis();
+        if (remainingMsecs <= 0) {
+          mLogger.warn(ctx + "deadline passed polling nameserver " + pNameserver + " after " + cntTries + " tries");
+          break;
+        }
+        waitForMsecs(Math.min(pBackoff.delayMsecs(cntTries), remainingMsecs));
+      }
     } catch (UnknownHostException uhe) {
-      mLogger.error(ctx + "UnknownHostException while polling for challenge record", uhe);
+      mLogger.error(ctx + "UnknownHostException while polling nameserver " + pNameserver, uhe);
     } catch (TextParseException tpe) {
-      mLogger.error(ctx + "TextParseException while polling for challenge record", tpe);
+      mLogger.error(ctx + "TextParseException while polling nameserver " + pNameserver, tpe);
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException while polling nameserver " + pNameserver, ioe);
     }
+    return false;
+  }
 
-    return gotAnswer;
+
+  /**
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return time after which no query is sent any more, starting from now
+   */
+  private long pollingDeadline (int pDnsResolutionTimeoutSecs) {
+    return System.currentTimeMillis() + pollingDeadlineMsecs(pDnsResolutionTimeoutSecs);
+  }
+
+
+  /**
+   * Computes how long the nameservers may be polled, not counting the last query which may still be running
+   * <p>
+   * Unless configured, this is ten times the resolution timeout, which is what the fixed strategy used to take
+   * at worst on a single nameserver; the adaptive strategy adds the propagation wait, which it doesn't sleep beforehand
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return polling deadline in milliseconds from the start of the polling
+   */
+  private long pollingDeadlineMsecs (int pDnsResolutionTimeoutSecs) {
+    String configured = mPollingConfiguration.getProperty(DNS_POLLING_DEADLINE_SECS);
+    long deadlineSecs;
+    if (configured != null) {
+      deadlineSecs = Long.parseLong(configured);
+      if (deadlineSecs <= 0) {
+        throw new IllegalArgumentException("invalid value for " + DNS_POLLING_DEADLINE_SECS + ": " + configured);
+      }
+    } else {
+      deadlineSecs = (long)DEFAULT_DEADLINE_TIMEOUTS * pDnsResolutionTimeoutSecs;
+      if (mAdaptivePropagation) {
+        deadlineSecs += mPropagationWaitSecs;
+      }
+    }
+    return deadlineSecs * 1000L;
+  }
+
+
+  /**
+   * Builds the backoff between two queries to a nameserver which doesn't answer as expected yet
+   * <p>
+   * Unless configured, the adaptive strategy starts again after one second and doubles the delay up to the resolution
+   * timeout, while the fixed strategy always waits the resolution timeout
+   * @param pDnsResolutionTimeoutSecs time we're prepared to wait when one of the nameservers doesn't answer as expected
+   * @return backoff policy
+   */
+  private BackoffPolicy buildBackoffPolicy (int pDnsResolutionTimeoutSecs) {
+    long timeoutMsecs = Math.max(1L, pDnsResolutionTimeoutSecs * 1000L);
+    long initialMsecs = mAdaptivePropagation ? ADAPTIVE_INITIAL_DELAY_MSECS : timeoutMsecs;
+    initialMsecs = Long.parseLong(mPollingConfiguration.getProperty(DNS_BACKOFF_INITIAL_MSECS, String.valueOf(initialMsecs)));
+    long maxMsecs = Long.parseLong(mPollingConfiguration.getProperty(DNS_BACKOFF_MAX_MSECS, String.valueOf(Math.max(initialMsecs, timeoutMsecs))));
+    double multiplier = Double.parseDouble(mPollingConfiguration.getProperty(DNS_BACKOFF_MULTIPLIER, String.valueOf(mAdaptivePropagation ? ADAPTIVE_MULTIPLIER : 1.0)));
+    double jitter = Double.parseDouble(mPollingConfiguration.getProperty(DNS_BACKOFF_JITTER, String.valueOf(mAdaptivePropagation ? ADAPTIVE_JITTER : 0.0)));
+    return new BackoffPolicy(initialMsecs, maxMsecs, multiplier, jitter);
+  }
+
+
+  /**
+   * Checks whether the given nameserver has or no longer has a TXT record with the given name and value
+   * @param pName record name
+   * @param pValue record value, null to match any value
+   * @param pNameserver nameserver to query
+   * @param pCheckPresence true to check for presence, false to check for absence
+   * @return true if the nameserver gave the expected answer, false if it gave another answer or none in time
+   * @throws IOException if errors
+   */
+  private boolean checkChallengeRecord (String pName, String pValue, String pNameserver, boolean pCheckPresence) throws IOException {
+    try {
+      return hasChallengeRecord(pName, pValue, pNameserver) == pCheckPresence;
+    } catch (SocketTimeoutException ste) {
+      mLogger.info("checkChallengeRecord - " + ste.getMessage());
+      return false;
+    }
+  }
+
+
+  /**
+   * Checks whether the given nameserver has a TXT record with the given name and value
+   * <p>
+   * The strings of a TXT record are joined before comparing them to the value, since a long value may be split
+   * into several strings; the record set may hold other values as well, such as those of other pending challenges
+   * or stale ones left by a previous run, which don't count
+   * @param pName record name
+   * @param pValue record value, null to match any value
+   * @param pNameserver nameserver to query
+   * @return true if the record was found
+   * @throws IOException if errors
+   */
+  private boolean hasChallengeRecord (String pName, String pValue, String pNameserver) throws IOException {
+    Record[] records = resolveName(pName, pNameserver);
+    if (records == null) {
+      return false;
+    }
+    for (Record record : records) {
+      if (record instanceof TXTRecord && (pValue == null || pValue.equals(joinStrings((TXTRecord)record)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Joins the strings of a TXT record
+   * @param pRecord TXT record
+   * @return record value
+   */
+  private static String joinStrings (TXTRecord pRecord) {
+    StringBuilder value = new StringBuilder();
+    for (Object string : pRecord.getStrings()) {
+      value.append(string);
+    }
+    return value.toString();
+  }
+
+
+  /**
+   * Queries the given nameserver for the SOA record of a zone
+   * @param pZone zone apex
+   * @param pNameserver nameserver to query
+   * @return SOA record, or null if the nameserver didn't answer, even with an error such as port unreachable,
+   *         or has no SOA record for the zone
+   * @throws IOException if the nameserver address cannot be resolved or the zone name is invalid
+   */
+  private SOARecord querySoa (String pZone, String pNameserver) throws IOException {
+    Name zone = Name.fromString(pZone, Name.root);
+    Resolver resolver = mResolverPool.getResolver(pNameserver);
+    Message response;
+    try {
+      response = resolver.send(Message.newQuery(Record.newRecord(zone, Type.SOA, DClass.IN)));
+    } catch (IOException ioe) {
+      // like a TXT lookup which gets no answer, this is worth trying again until the deadline
+      mLogger.info("querySoa - no answer from nameserver " + pNameserver + ": " + ioe);
+      return null;
+    }
+    for (Record record : response.getSectionArray(Section.ANSWER)) {
+      if (record.getType() == Type.SOA && zone.equals(record.getName())) {
+        return (SOARecord)record;
+      }
+    }
+    return null;
   }
 
 
   /**
    * Resolves the given name at the given nameserver
-   * @param pName name to be resolved
+   * @param pName name to be resolved, taken as absolute
    * @param pNameserver nameserver to use
    * @return records resulting from the lookup or null if not found
-   * @throws UnknownHostException if errors
-   * @throws TextParseException if errors
+   * @throws SocketTimeoutException if the nameserver didn't answer
+   * @throws IOException if errors
    */
-  private Record[] resolveName (String pName, String pNameserver) throws UnknownHostException, TextParseException {
-    Resolver resolver = new SimpleResolver(pNameserver);
-    resolver.setTimeout(DNS_TIMEOUT_SECS);        // set a timeout to avoid waiting forever for a lookup
-    Lookup lookup = new Lookup(pName, Type.TXT);
+  private Record[] resolveName (String pName, String pNameserver) throws IOException {
+    Resolver resolver = mResolverPool.getResolver(pNameserver);
+    // an absolute name, since the search path of resolv.conf would add names the nameserver refuses, which
+    // would then pass for a query that timed out
+    Lookup lookup = new Lookup(Name.fromString(pName, Name.root), Type.TXT);
     lookup.setResolver(resolver);
     lookup.setCache(null);                        // no cache for those lookups
-    return lookup.run();
+    Record[] records = lookup.run();
+    if (lookup.getResult() == Lookup.TRY_AGAIN) {
+      // a query which timed out tells nothing about the record, and must not pass for its absence
+      throw new SocketTimeoutException("no answer from nameserver " + pNameserver + ": " + lookup.getErrorString());
+    }
+    return records;
+  }
+
+
+  /**
+   * A check applied to a nameserver while polling it, which is tried again until it passes
+   */
+  @FunctionalInterface
+  private interface NameserverCheck {
+
+    /**
+     * @param pNameserver nameserver to check
+     * @return true if the nameserver gave the expected answer
+     * @throws IOException if the nameserver cannot be queried at all
+     */
+    boolean check (String pNameserver) throws IOException;
   }
 
 
@@ -188,11 +930,20 @@ public class DNSTools {
    * @param pSecs seconds to sleep for
    */
   private void waitFor (int pSecs) {
-    long waitMsecs = pSecs * 1000L;
+    waitForMsecs(pSecs * 1000L);
+  }
+
+
+  /**
+   * Utility method to sleep for the given amount of milliseconds
+   * @param pMsecs milliseconds to sleep for
+   */
+  private void waitForMsecs (long pMsecs) {
     try {
-      Thread.sleep(waitMsecs);
+      Thread.sleep(pMsecs);
     } catch (InterruptedException ie) {
-      // nothing much that can be done here
+      // keep the interrupted status so that a cancelled poll stops trying
+      Thread.currentThread().interrupt();
     }
   }
 
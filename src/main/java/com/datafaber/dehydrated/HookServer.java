@@ -0,0 +1,199 @@
+package com.datafaber.dehydrated;
+
+import com.datafaber.dehydrated.hooks.Challenge;
+import com.datafaber.dehydrated.hooks.ChallengeResult;
+import com.datafaber.dehydrated.hooks.Hook;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Long-running server which keeps a hook warm and executes the dehydrated commands it receives over a loopback socket
+ * <p>
+ * The protocol is line based: the client sends the token the server wrote to its token file, then the arguments
+ * dehydrated passed to the hook, separated by tabs (the command followed by one or more hostname, token, value triplets),
+ * each terminated by a newline; the server answers with the exit status the hook would have had, 0 for success and 1
+ * for failure, followed by a newline. The token file is readable by its owner only, so that other local users cannot
+ * drive the hook through the loopback port
+ * <p>
+ * With asynchronous cleanups clean_challenge answers as soon as the records are deleted, and the server keeps polling
+ * the nameservers in the background until they are gone
+ */
+public class HookServer {
+
+  // separator between the arguments of a request
+  private static final String ARGUMENT_SEPARATOR = "\t";
+
+  // exit statuses sent back to the client
+  private static final String STATUS_SUCCESS = "0";
+  private static final String STATUS_FAILURE = "1";
+
+  // length in bytes of the random token clients authenticate with
+  private static final int TOKEN_LENGTH = 32;
+
+  // how long a client may take to send its request
+  private static final int REQUEST_TIMEOUT_MSECS = 10000;
+
+  private final Hook mHook;
+  private final int mPort;
+  private final Path mTokenFile;
+  private byte[] mToken;
+  private final boolean mAsyncClean;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.HookServer");
+
+
+  /**
+   * Builds a server for the given hook
+   * @param pHook hook which will execute the commands
+   * @param pPort loopback port to listen on
+   * @param pTokenFile file to write the token clients authenticate with to
+   * @param pAsyncClean true to verify the cleanups in the background, false to answer once the records are gone
+   */
+  public HookServer (Hook pHook, int pPort, Path pTokenFile, boolean pAsyncClean) {
+    mHook = pHook;
+    mPort = pPort;
+    mTokenFile = pTokenFile;
+    mAsyncClean = pAsyncClean;
+  }
+
+
+  /**
+   * Accepts connections until the JVM is terminated
+   * @throws IOException if the token file cannot be written or the server socket cannot be opened
+   */
+  public void serve () throws IOException {
+    String ctx = "serve - ";
+    writeToken();
+    try (ServerSocket serverSocket = new ServerSocket(mPort, 50, InetAddress.getLoopbackAddress())) {
+      mLogger.info(ctx + "listening on " + serverSocket.getLocalSocketAddress());
+      while (!Thread.currentThread().isInterrupted()) {
+        Socket socket = serverSocket.accept();
+        TaskExecutors.connections().submit(() -> handleConnection(socket));
+      }
+    }
+  }
+
+
+  /**
+   * Reads a single request from the given connection, executes it and writes back the exit status
+   * @param pSocket client connection
+   */
+  private void handleConnection (Socket pSocket) {
+    String ctx = "handleConnection - ";
+    try (Socket socket = pSocket;
+         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+      // a client which connects and sends nothing must not hold a thread forever
+      socket.setSoTimeout(REQUEST_TIMEOUT_MSECS);
+      String token = reader.readLine();
+      String request = reader.readLine();
+      boolean result = false;
+      if (token == null || !MessageDigest.isEqual(mToken, token.getBytes(StandardCharsets.UTF_8))) {
+        mLogger.warn(ctx + "rejected a request with a wrong token from " + socket.getRemoteSocketAddress());
+      } else if (request == null || "".equals(request)) {
+        mLogger.warn(ctx + "received an empty request");
+      } else {
+        try {
+          result = executeRequest(request.split(ARGUMENT_SEPARATOR, -1));
+        } catch (RuntimeException re) {
+          mLogger.error(ctx + "RuntimeException executing request", re);
+        }
+      }
+      writer.write((result ? STATUS_SUCCESS : STATUS_FAILURE) + "\n");
+      writer.flush();
+    } catch (SocketTimeoutException ste) {
+      mLogger.warn(ctx + "client sent no request within " + REQUEST_TIMEOUT_MSECS + " msecs, connection closed");
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException handling a client connection", ioe);
+    }
+  }
+
+
+  /**
+   * Writes a new random token to the token file, readable by its owner only where the file system allows it
+   * @throws IOException if errors
+   */
+  private void writeToken () throws IOException {
+    String ctx = "writeToken - ";
+    byte[] random = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(random);
+    StringBuilder token = new StringBuilder();
+    for (byte b : random) {
+      token.append(String.format("%02x", b));
+    }
+
+    Path directory = mTokenFile.toAbsolutePath().getParent();
+    boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    if (!Files.isDirectory(directory)) {
+      if (posix) {
+        Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      } else {
+        Files.createDirectories(directory);
+      }
+    }
+    // written to a new file which is moved over the old one, so that the token is never readable by others, even briefly
+    FileAttribute<?>[] attributes = posix ?
+            new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")) } :
+            new FileAttribute<?>[0];
+    Path tempFile = Files.createTempFile(directory, mTokenFile.getFileName().toString(), ".tmp", attributes);
+    try {
+      Files.write(tempFile, (token + "\n").getBytes(StandardCharsets.UTF_8));
+      Files.move(tempFile, mTokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    mToken = token.toString().getBytes(StandardCharsets.UTF_8);
+    mLogger.info(ctx + "clients authenticate with the token in " + mTokenFile);
+  }
+
+
+  /**
+   * Executes a request made of the arguments dehydrated passed to the hook
+   * @param pArguments command followed by hostname, token and value triplets
+   * @return true if the command succeeded or is to be ignored, false otherwise
+   */
+  private boolean executeRequest (String[] pArguments) {
+    String command = pArguments[0];
+    List<Challenge> challenges = Main.parseChallenges(pArguments, 1);
+    mLogger.info("executeRequest - received command " + command + " for challenges " + challenges);
+    return Main.executeCommand(mHook, command, challenges, mAsyncClean ? this::verifyInBackground : null);
+  }
+
+
+  /**
+   * Starts verifying the cleanup of the given challenges, logging the outcome when it's known
+   * @param pChallenges challenges whose records were deleted
+   * @return always true, the outcome is only logged
+   */
+  private boolean verifyInBackground (List<Challenge> pChallenges) {
+    String ctx = "verifyInBackground - ";
+    mHook.challengeVerifyDeletedAsync(pChallenges).whenComplete((results, error) -> {
+      if (error != null) {
+        mLogger.error(ctx + "unexpected error verifying the cleanup of " + pChallenges, error);
+        return;
+      }
+      for (ChallengeResult result : results) {
+        if (result.isSuccess()) {
+          mLogger.info(ctx + "record gone from all nameservers: " + result);
+        } else {
+          mLogger.error(ctx + result);
+        }
+      }
+    });
+    return true;
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.datafaber.dehydrated;
 
+import com.datafaber.dehydrated.hooks.Challenge;
+import com.datafaber.dehydrated.hooks.ChallengeResult;
 import com.datafaber.dehydrated.hooks.CloudflareDNSHook;
 import com.datafaber.dehydrated.hooks.Hook;
 import com.datafaber.dehydrated.hooks.PowerDNSHook;
@@ -8,9 +10,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
-import java.util.HashSet;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
 
 /**
  * Main entry point
@@ -24,6 +30,9 @@ public class Main {
   private static final String COMMAND = "command";
   private static final String COMMAND_DEPLOY_CHALLENGE = "deploy_challenge";
   private static final String COMMAND_CLEAN_CHALLENGE = "clean_challenge";
+  private static final String COMMAND_SERVE = "serve";
+  // run by the detached job which verifies the cleanups in async mode, never by dehydrated
+  static final String COMMAND_VERIFY_CLEAN_CHALLENGE = "verify_clean_challenge";
   private static final String HOSTNAME = "hostname";
   private static final String VALUE = "value";
 
@@ -31,6 +40,12 @@ public class Main {
   private static final String HOOK_PROPERTY = "HOOK";
   private static final String HOOK_PROPERTY_POWERDNS = "powerdns";
   private static final String HOOK_PROPERTY_CLOUDFLARE = "cloudflare";
+  private static final String HOOK_SERVER_PORT_PROPERTY = "HOOK_SERVER_PORT";
+  private static final String HOOK_SERVER_PORT_DEFAULT = "8053";
+  private static final String HOOK_SERVER_TOKEN_FILE_PROPERTY = "HOOK_SERVER_TOKEN_FILE";
+  private static final String CLEAN_CHALLENGE_MODE_PROPERTY = "CLEAN_CHALLENGE_MODE";
+  private static final String CLEAN_CHALLENGE_MODE_SYNC = "sync";
+  private static final String CLEAN_CHALLENGE_MODE_ASYNC = "async";
 
   private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.Main");
 
@@ -48,7 +63,12 @@ public class Main {
       String command = cmd.getOptionValue(COMMAND);
       String hostname = cmd.getOptionValue(HOSTNAME);
       String value = cmd.getOptionValue(VALUE);
-      if (!(COMMAND_DEPLOY_CHALLENGE.equals(command) || COMMAND_CLEAN_CHALLENGE.equals(command))) {
+      // with HOOK_CHAIN=yes dehydrated passes "domain token value" triplets, which are given after the options
+      List<Challenge> challenges = (hostname == null || "".equals(hostname)) ?
+              parseChallenges(cmd.getArgs(), 0) :
+              Collections.singletonList(new Challenge(hostname, null, value));
+      if (!(COMMAND_DEPLOY_CHALLENGE.equals(command) || COMMAND_CLEAN_CHALLENGE.equals(command) || COMMAND_SERVE.equals(command) ||
+              COMMAND_VERIFY_CLEAN_CHALLENGE.equals(command))) {
         // since dehydrated 0.6.1 we should ignore (that is, return 0) any unknown command - which feels broken to me but so it is
         System.exit(0);
       }
@@ -58,35 +78,47 @@ public class Main {
         formatter.printHelp("dnshook", options);
         System.exit(1);
       }
+      if (!COMMAND_SERVE.equals(command) && !COMMAND_VERIFY_CLEAN_CHALLENGE.equals(command) && (null == challenges || challenges.isEmpty())) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("dnshook", options);
+        System.exit(1);
+      }
       Properties config = readConfiguration(configurationPath);
-      String hookType = config.getProperty(HOOK_PROPERTY);
-      Hook hook = null;
-      if (HOOK_PROPERTY_POWERDNS.equals(hookType)) {
-        hook = new PowerDNSHook(config);
-      } else if (HOOK_PROPERTY_CLOUDFLARE.equals(hookType)) {
-        hook = new CloudflareDNSHook(config);
-      } else {
+      String cleanMode = config.getProperty(CLEAN_CHALLENGE_MODE_PROPERTY, CLEAN_CHALLENGE_MODE_SYNC);
+      if (!CLEAN_CHALLENGE_MODE_SYNC.equals(cleanMode) && !CLEAN_CHALLENGE_MODE_ASYNC.equals(cleanMode)) {
+        throw new IllegalArgumentException("invalid value for " + CLEAN_CHALLENGE_MODE_PROPERTY + ": " + cleanMode);
+      }
+      boolean asyncClean = CLEAN_CHALLENGE_MODE_ASYNC.equals(cleanMode);
+      Hook hook = buildHook(config);
+      if (hook == null) {
         // exit with a non-zero status to indicate that the command wasn't accepted
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("dnshook", options);
         System.exit(1);
       }
-      if (COMMAND_DEPLOY_CHALLENGE.equals(command)) {
-        if (hook.challengeStart(hostname, value)) {
-          mLogger.info("Successfully deployed challenge for hostname " + hostname);
-          System.exit(0);
-        } else {
-          mLogger.warn("Could not deploy challenge for hostname " + hostname);
-          System.exit(1);
-        }
-      } else if (COMMAND_CLEAN_CHALLENGE.equals(command)) {
-        if (hook.challengeStop(hostname)) {
-          mLogger.info("Successfully deleted challenge for hostname " + hostname);
-          System.exit(0);
-        } else {
-          mLogger.warn("Could not delete challenge for hostname " + hostname);
+      if (COMMAND_SERVE.equals(command)) {
+        int port = Integer.parseInt(config.getProperty(HOOK_SERVER_PORT_PROPERTY, HOOK_SERVER_PORT_DEFAULT));
+        String tokenFile = config.getProperty(HOOK_SERVER_TOKEN_FILE_PROPERTY,
+                Paths.get(System.getProperty("user.home"), ".dehydrated-hooks", "server.token").toString());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> closeHook(hook)));
+        try {
+          new HookServer(hook, port, Paths.get(tokenFile.trim()), asyncClean).serve();
+        } catch (IOException ioe) {
+          mLogger.error("Could not run the hook server on port " + port + " with token file " + tokenFile, ioe);
           System.exit(1);
         }
+      } else if (COMMAND_VERIFY_CLEAN_CHALLENGE.equals(command)) {
+        boolean result = new CleanupJournal(config).runJobs(hook);
+        closeHook(hook);
+        System.exit(result ? 0 : 1);
+      } else {
+        // in async mode the cleanups are verified by a detached job, or right away if it cannot be started
+        CleanupJournal journal = new CleanupJournal(config);
+        boolean result = executeCommand(hook, command, challenges, asyncClean ?
+                deleted -> journal.submit(deleted, configurationPath) || verifyDeleted(hook, deleted) :
+                null);
+        closeHook(hook);
+        System.exit(result ? 0 : 1);
       }
     } catch (ParseException pe) {
       HelpFormatter formatter = new HelpFormatter();
@@ -95,6 +127,124 @@ public class Main {
   }
 
 
+  /**
+   * Builds the hook specified by the given configuration
+   * @param pConfig configuration properties
+   * @return hook instance, or null if the configuration doesn't specify a known hook
+   */
+  private static Hook buildHook (Properties pConfig) {
+    String hookType = pConfig.getProperty(HOOK_PROPERTY);
+    Hook hook = null;
+    if (HOOK_PROPERTY_POWERDNS.equals(hookType)) {
+      hook = new PowerDNSHook(pConfig);
+    } else if (HOOK_PROPERTY_CLOUDFLARE.equals(hookType)) {
+      hook = new CloudflareDNSHook(pConfig);
+    }
+    return hook;
+  }
+
+
+  /**
+   * Releases the resources held by the given hook, such as its API connections
+   * @param pHook hook to close
+   */
+  private static void closeHook (Hook pHook) {
+    try {
+      pHook.close();
+    } catch (IOException ioe) {
+      mLogger.warn("closeHook - IOException closing the hook", ioe);
+    }
+  }
+
+
+  /**
+   * Parses the "domain token value" triplets which dehydrated passes to the hook
+   * @param pArguments arguments to parse
+   * @param pOffset index of the first argument of the first triplet
+   * @return parsed challenges, or null if the arguments aren't made of complete triplets
+   */
+  static List<Challenge> parseChallenges (String[] pArguments, int pOffset) {
+    int cntArguments = pArguments.length - pOffset;
+    if (cntArguments < 0 || cntArguments % 3 != 0) {
+      mLogger.warn("parseChallenges - expected domain, token and value triplets but got " + cntArguments + " arguments");
+      return null;
+    }
+    List<Challenge> challenges = new ArrayList<>(cntArguments / 3);
+    for (int i = pOffset; i < pArguments.length; i += 3) {
+      challenges.add(new Challenge(pArguments[i], pArguments[i + 1], pArguments[i + 2]));
+    }
+    return challenges;
+  }
+
+
+  /**
+   * Executes a dehydrated command with the given hook
+   * @param pHook hook to use
+   * @param pCommand dehydrated command
+   * @param pChallenges challenges to start or end, can be null for commands which are ignored
+   * @param pCleanVerification how to verify the cleanups once their records are deleted, returning false only if
+   * the verification failed; null to wait for the records to be gone before returning
+   * @return true if the command succeeded or is to be ignored, false if the command failed
+   */
+  static boolean executeCommand (Hook pHook, String pCommand, List<Challenge> pChallenges, Predicate<List<Challenge>> pCleanVerification) {
+    boolean challengeCommand = COMMAND_DEPLOY_CHALLENGE.equals(pCommand) || COMMAND_CLEAN_CHALLENGE.equals(pCommand);
+    if (challengeCommand && (pChallenges == null || pChallenges.isEmpty())) {
+      mLogger.warn("No challenges given for command " + pCommand);
+      return false;
+    }
+    if (COMMAND_DEPLOY_CHALLENGE.equals(pCommand)) {
+      if (pHook.challengeStart(pChallenges)) {
+        mLogger.info("Successfully deployed challenges " + pChallenges);
+        return true;
+      } else {
+        mLogger.warn("Could not deploy challenges " + pChallenges);
+        return false;
+      }
+    } else if (COMMAND_CLEAN_CHALLENGE.equals(pCommand) && pCleanVerification != null) {
+      if (pHook.challengeDelete(pChallenges) && pCleanVerification.test(pChallenges)) {
+        mLogger.info("Successfully deleted challenges " + pChallenges + ", leaving the verification in the background");
+        return true;
+      } else {
+        mLogger.warn("Could not delete challenges " + pChallenges);
+        return false;
+      }
+    } else if (COMMAND_CLEAN_CHALLENGE.equals(pCommand)) {
+      if (pHook.challengeStop(pChallenges)) {
+        mLogger.info("Successfully deleted challenges " + pChallenges);
+        return true;
+      } else {
+        mLogger.warn("Could not delete challenges " + pChallenges);
+        return false;
+      }
+    }
+    // since dehydrated 0.6.1 we should ignore any unknown command
+    return true;
+  }
+
+
+  /**
+   * Waits for the deleted records of the given challenges to be gone from the nameservers
+   * @param pHook hook which deleted the records
+   * @param pChallenges challenges whose records were deleted
+   * @return true if all the records are gone, false otherwise
+   */
+  static boolean verifyDeleted (Hook pHook, List<Challenge> pChallenges) {
+    boolean result = true;
+    try {
+      for (ChallengeResult challengeResult : pHook.challengeVerifyDeletedAsync(pChallenges).join()) {
+        if (!challengeResult.isSuccess()) {
+          mLogger.error("verifyDeleted - " + challengeResult);
+          result = false;
+        }
+      }
+    } catch (CompletionException ce) {
+      mLogger.error("verifyDeleted - unexpected error verifying challenges " + pChallenges, ce.getCause());
+      result = false;
+    }
+    return result;
+  }
+
+
   /**
    * Reads the specified configuration file
    * @param pConfigurationPath path to the configuration file
@@ -134,13 +284,12 @@ public class Main {
             .build());
     options.addOption(Option.builder(COMMAND)
             .hasArg()
-            .desc("The command to execute - challenge-dns-start or challenge-dns-end")
+            .desc("The command to execute - deploy_challenge, clean_challenge or serve; verify_clean_challenge is run by the hooks themselves")
             .required()
             .build());
     options.addOption(Option.builder(HOSTNAME)
             .hasArg()
-            .desc("The hostname for which to start or end the challenge")
-            .required()
+            .desc("The hostname for which to start or end the challenge - not needed for serve or when passing domain, token and value triplets after the options")
             .build());
     options.addOption(Option.builder(VALUE)
             .hasArg()
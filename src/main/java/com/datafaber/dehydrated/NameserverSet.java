@@ -0,0 +1,148 @@
+package com.datafaber.dehydrated;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * The authoritative nameservers of a zone, with the glue addresses which came along with them
+ */
+public class NameserverSet {
+
+  private static final InetAddress[] NO_ADDRESSES = new InetAddress[0];
+
+  // separators used when the set is stored in a cache, none of which can appear in hostnames or address literals
+  private static final String FIELD_SEPARATOR = "|";
+  private static final String LIST_SEPARATOR = ",";
+  private static final String GLUE_SEPARATOR = "=";
+  private static final String ADDRESS_SEPARATOR = ";";
+
+  private final String mZone;
+  private final String[] mNameservers;
+  private final Map<String, InetAddress[]> mGlue;
+  private final long mTtlSecs;
+
+
+  /**
+   * Builds a set of nameservers
+   * @param pZone apex of the zone
+   * @param pNameservers nameserver hostnames
+   * @param pGlue addresses of the nameservers, keyed by lowercase hostname without the trailing dot
+   * @param pTtlSecs time to live of the NS records
+   */
+  public NameserverSet (String pZone, String[] pNameservers, Map<String, InetAddress[]> pGlue, long pTtlSecs) {
+    mZone = pZone;
+    mNameservers = pNameservers;
+    mGlue = pGlue == null ? Collections.emptyMap() : pGlue;
+    mTtlSecs = pTtlSecs;
+  }
+
+
+  /**
+   * @return apex of the zone, without the trailing dot
+   */
+  public String getZone () {
+    return mZone;
+  }
+
+
+  /**
+   * @return nameserver hostnames
+   */
+  public String[] getNameservers () {
+    return mNameservers;
+  }
+
+
+  /**
+   * @param pNameserver nameserver hostname
+   * @return glue addresses of the given nameserver, empty if none came along with the NS records
+   */
+  public InetAddress[] getGlue (String pNameserver) {
+    InetAddress[] addresses = mGlue.get(normalize(pNameserver));
+    return addresses == null ? NO_ADDRESSES : addresses;
+  }
+
+
+  /**
+   * @return time to live of the NS records, in seconds
+   */
+  public long getTtlSecs () {
+    return mTtlSecs;
+  }
+
+
+  /**
+   * Normalizes a hostname, so that "NS1.example.com." and "ns1.example.com" are the same key, or share the same resolver
+   * @param pHostname hostname
+   * @return normalized hostname
+   */
+  public static String normalize (String pHostname) {
+    String hostname = pHostname.trim().toLowerCase(Locale.ROOT);
+    if (hostname.endsWith(".")) {
+      hostname = hostname.substring(0, hostname.length() - 1);
+    }
+    return hostname;
+  }
+
+
+  /**
+   * Serializes this set so that it can be stored in a cache
+   * @return serialized set
+   * @see #fromCacheValue(String)
+   */
+  public String toCacheValue () {
+    StringJoiner glue = new StringJoiner(LIST_SEPARATOR);
+    for (Map.Entry<String, InetAddress[]> entry : mGlue.entrySet()) {
+      StringJoiner addresses = new StringJoiner(ADDRESS_SEPARATOR);
+      for (InetAddress address : entry.getValue()) {
+        addresses.add(address.getHostAddress());
+      }
+      glue.add(entry.getKey() + GLUE_SEPARATOR + addresses);
+    }
+    return mZone + FIELD_SEPARATOR + mTtlSecs + FIELD_SEPARATOR + String.join(LIST_SEPARATOR, mNameservers) + FIELD_SEPARATOR + glue;
+  }
+
+
+  /**
+   * Deserializes a set stored in a cache
+   * @param pValue serialized set, can be null
+   * @return set, or null if the value is null or invalid
+   * @see #toCacheValue()
+   */
+  public static NameserverSet fromCacheValue (String pValue) {
+    if (pValue == null) {
+      return null;
+    }
+    String[] fields = pValue.split("\\" + FIELD_SEPARATOR, -1);
+    if (fields.length != 4 || "".equals(fields[2])) {
+      return null;
+    }
+    try {
+      Map<String, InetAddress[]> glue = new HashMap<>();
+      for (String entry : fields[3].split(LIST_SEPARATOR)) {
+        String[] parts = entry.split(GLUE_SEPARATOR, 2);
+        if (parts.length != 2) {
+          continue;
+        }
+        String[] literals = parts[1].split(ADDRESS_SEPARATOR);
+        InetAddress[] addresses = new InetAddress[literals.length];
+        for (int i = 0; i < literals.length; i++) {
+          // only address literals are stored, so this never causes a lookup
+          addresses[i] = InetAddress.getByName(literals[i]);
+        }
+        glue.put(parts[0], addresses);
+      }
+      return new NameserverSet(fields[0], fields[2].split(LIST_SEPARATOR), glue, Long.parseLong(fields[1]));
+    } catch (NumberFormatException | UnknownHostException e) {
+      return null;
+    }
+  }
+
+
+  @Override
+  public String toString () {
+    return mZone + " " + Arrays.toString(mNameservers) + " (ttl = " + mTtlSecs + ")";
+  }
+
+}
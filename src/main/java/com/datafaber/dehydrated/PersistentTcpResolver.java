@@ -0,0 +1,287 @@
+package com.datafaber.dehydrated;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xbill.DNS.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resolver sending all its queries to one nameserver over a single TCP connection, which is kept open between queries
+ * <p>
+ * Polling a nameserver many times over UDP costs nothing to set up but may lose or truncate answers, while opening
+ * a new TCP connection for every query costs an extra round-trip each time; keeping the connection open gets
+ * the reliability of TCP for the price of one handshake. Queries are sent one at a time, and a connection closed
+ * by the nameserver while idle is opened again transparently
+ */
+public class PersistentTcpResolver implements Resolver, Closeable {
+
+  private static final int DEFAULT_TIMEOUT_MSECS = 10000;
+
+  private InetSocketAddress mAddress;
+  private int mTimeoutMsecs = DEFAULT_TIMEOUT_MSECS;
+  private OPTRecord mOpt;
+  private TSIG mTsig;
+  private Socket mSocket;
+  private DataInputStream mInput;
+  private DataOutputStream mOutput;
+
+  // held while a query is on the wire; a lock rather than synchronized, which on JDK 21 would pin the carrier thread
+  // of every virtual thread blocked on the socket or waiting for its turn
+  private final ReentrantLock mLock = new ReentrantLock();
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.PersistentTcpResolver");
+
+
+  /**
+   * Builds a resolver for the given nameserver; the connection is opened by the first query
+   * @param pAddress address and port of the nameserver
+   */
+  public PersistentTcpResolver (InetSocketAddress pAddress) {
+    mAddress = pAddress;
+  }
+
+
+  @Override
+  public void setPort (int pPort) {
+    mLock.lock();
+    try {
+      mAddress = new InetSocketAddress(mAddress.getAddress(), pPort);
+      disconnect();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+
+  /**
+   * Does nothing, since this resolver always uses TCP
+   * @param pTcp ignored
+   */
+  @Override
+  public void setTCP (boolean pTcp) {
+  }
+
+
+  /**
+   * Does nothing, since answers over TCP are never truncated
+   * @param pIgnoreTruncation ignored
+   */
+  @Override
+  public void setIgnoreTruncation (boolean pIgnoreTruncation) {
+  }
+
+
+  @Override
+  public void setEDNS (int pLevel) {
+    setEDNS(pLevel, 0, 0, null);
+  }
+
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void setEDNS (int pLevel, int pPayloadSize, int pFlags, List pOptions) {
+    mLock.lock();
+    try {
+      if (pLevel == -1) {
+        mOpt = null;
+        return;
+      }
+      if (pLevel != 0) {
+        throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+      }
+      mOpt = new OPTRecord(pPayloadSize == 0 ? SimpleResolver.DEFAULT_EDNS_PAYLOADSIZE : pPayloadSize, 0, pLevel, pFlags, pOptions);
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+
+  /**
+   * Sets the key to sign the queries with, and to verify the responses with
+   * @param pKey TSIG key, null to send unsigned queries
+   */
+  @Override
+  public void setTSIGKey (TSIG pKey) {
+    mLock.lock();
+    try {
+      mTsig = pKey;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+
+  @Override
+  public void setTimeout (int pSecs, int pMsecs) {
+    mLock.lock();
+    try {
+      mTimeoutMsecs = pSecs * 1000 + pMsecs;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+
+  @Override
+  public void setTimeout (int pSecs) {
+    setTimeout(pSecs, 0);
+  }
+
+
+  /**
+   * Sends a query over the open connection, opening it first if needed
+   * @param pQuery query
+   * @return response
+   * @throws IOException if the nameserver cannot be reached or doesn't answer in time
+   */
+  @Override
+  public Message send (Message pQuery) throws IOException {
+    String ctx = "send - ";
+    mLock.lock();
+    try {
+      Message query = (Message)pQuery.clone();
+      if (mOpt != null && query.getOPT() == null) {
+        query.addRecord(mOpt, Section.ADDITIONAL);
+      }
+      if (mTsig != null) {
+        mTsig.apply(query, null);
+      }
+      byte[] wire = query.toWire(Message.MAXLENGTH);
+
+      for (int cntTries = 1; ; cntTries++) {
+        boolean reused = mSocket != null;
+        try {
+          connect();
+          mOutput.writeShort(wire.length);
+          mOutput.write(wire);
+          mOutput.flush();
+          byte[] responseWire = receive(query.getHeader().getID());
+          Message response = new Message(responseWire);
+          if (mTsig != null) {
+            // like SimpleResolver, the outcome is left in the response for the caller to check
+            int error = mTsig.verify(response, responseWire, query.getTSIG());
+            if (error != Rcode.NOERROR) {
+              mLogger.warn(ctx + "TSIG verification of the response from " + mAddress + " failed: " + Rcode.TSIGstring(error));
+            }
+          }
+          return response;
+        } catch (IOException ioe) {
+          disconnect();
+          // an idle connection may have been closed by the nameserver, which only shows when using it again;
+          // a timeout though means the nameserver is slow, and another try is up to the caller
+          if (!reused || cntTries > 1 || ioe instanceof SocketTimeoutException) {
+            throw ioe;
+          }
+          mLogger.debug(ctx + "connection to " + mAddress + " lost, opening it again");
+        }
+      }
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+
+  /**
+   * Sends a query in the background
+   * @param pQuery query
+   * @param pListener listener to notify of the response or of the failure
+   * @return identifier of the query, passed to the listener
+   */
+  @Override
+  public Object sendAsync (Message pQuery, ResolverListener pListener) {
+    Object id = new Object();
+    // a thread of its own, as SimpleResolver does: ExtendedResolver waits for the answer, possibly from a pooled
+    // thread itself, so running the query on a bounded pool could leave no thread to send it
+    org.xbill.DNS.Record question = pQuery.getQuestion();
+    Thread thread = new Thread(() -> {
+      try {
+        pListener.receiveMessage(id, send(pQuery));
+      } catch (IOException | RuntimeException e) {
+        pListener.handleException(id, e);
+      }
+    }, getClass().getSimpleName() + ": " + (question == null ? "(none)" : question.getName() + "/" + Type.string(question.getType())));
+    thread.setDaemon(true);
+    thread.start();
+    return id;
+  }
+
+
+  /**
+   * Closes the connection
+   */
+  @Override
+  public void close () {
+    mLock.lock();
+    try {
+      disconnect();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+
+  /**
+   * Opens the connection, if it isn't open yet
+   * @throws IOException if the nameserver cannot be reached
+   */
+  private void connect () throws IOException {
+    if (mSocket != null) {
+      mSocket.setSoTimeout(mTimeoutMsecs);
+      return;
+    }
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(mAddress, mTimeoutMsecs);
+      socket.setSoTimeout(mTimeoutMsecs);
+      mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      mOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      mSocket = socket;
+    } catch (IOException ioe) {
+      socket.close();
+      throw ioe;
+    }
+  }
+
+
+  /**
+   * Reads responses until the one to the given query comes
+   * @param pId id of the query
+   * @return response, as read from the wire
+   * @throws IOException if errors
+   */
+  private byte[] receive (int pId) throws IOException {
+    while (true) {
+      byte[] wire = new byte[mInput.readUnsignedShort()];
+      mInput.readFully(wire);
+      if (wire.length >= Header.LENGTH && (((wire[0] & 0xFF) << 8) | (wire[1] & 0xFF)) == pId) {
+        return wire;
+      }
+      // a late response to a query which was given up on, skip it
+    }
+  }
+
+
+  /**
+   * Closes the connection, if open
+   */
+  private void disconnect () {
+    if (mSocket != null) {
+      try {
+        mSocket.close();
+      } catch (IOException ioe) {
+        // nothing else to do with this connection
+      }
+      mSocket = null;
+      mInput = null;
+      mOutput = null;
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+package com.datafaber.dehydrated;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xbill.DNS.ExtendedResolver;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SimpleResolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of resolvers, one per nameserver, which are built once and reused for all the queries to that nameserver
+ * <p>
+ * The address of each nameserver is resolved only when its resolver is first needed, unless it has been pinned
+ * to pre-resolved addresses, either through the configuration or by calling {@link #pin(String, InetAddress...)},
+ * or its glue addresses have been learnt while discovering the nameservers of a zone
+ * <p>
+ * The transport of the queries is configurable: UDP falling back to TCP for truncated answers (the default),
+ * always TCP, or a TCP connection per nameserver kept open between queries, which pays off when polling a lot
+ */
+public class ResolverPool {
+
+  // property names and values
+  private static final String DNS_ADDRESS_FAMILY = "DNS_ADDRESS_FAMILY";
+  private static final String DNS_ADDRESS_FAMILY_ANY = "any";
+  private static final String DNS_ADDRESS_FAMILY_IPV4 = "ipv4";
+  private static final String DNS_ADDRESS_FAMILY_IPV6 = "ipv6";
+  private static final String DNS_PINNED_NAMESERVERS = "DNS_PINNED_NAMESERVERS";
+  private static final String DNS_TRANSPORT = "DNS_TRANSPORT";
+  private static final String DNS_TRANSPORT_UDP = "udp";
+  private static final String DNS_TRANSPORT_TCP = "tcp";
+  private static final String DNS_TRANSPORT_PERSISTENT_TCP = "persistent-tcp";
+  private static final String DNS_EDNS_PAYLOAD_SIZE = "DNS_EDNS_PAYLOAD_SIZE";
+  private static final String DNS_QUERY_TIMEOUT_MSECS = "DNS_QUERY_TIMEOUT_MSECS";
+  private static final String DNS_QUERY_RETRIES = "DNS_QUERY_RETRIES";
+
+  private final int mTimeoutMsecs;
+  private final int mRetries;
+  private final int mEdnsPayloadSize;
+  private final String mTransport;
+  private final String mAddressFamily;
+  private final ConcurrentMap<String, InetAddress[]> mPinnedAddresses = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, InetAddress[]> mGlueAddresses = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Resolver> mResolvers = new ConcurrentHashMap<>();
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.ResolverPool");
+
+
+  /**
+   * Builds an empty pool
+   * @param pConfiguration configuration properties
+   * @param pTimeoutSecs timeout of a single query, unless configured
+   */
+  public ResolverPool (Properties pConfiguration, int pTimeoutSecs) {
+    mTimeoutMsecs = Integer.parseInt(pConfiguration.getProperty(DNS_QUERY_TIMEOUT_MSECS, String.valueOf(pTimeoutSecs * 1000)));
+    mRetries = Integer.parseInt(pConfiguration.getProperty(DNS_QUERY_RETRIES, "0"));
+    // 0 keeps EDNS off, as dnsjava does by default
+    mEdnsPayloadSize = Integer.parseInt(pConfiguration.getProperty(DNS_EDNS_PAYLOAD_SIZE, "0"));
+    if (mTimeoutMsecs <= 0 || mRetries < 0 || mEdnsPayloadSize < 0 || mEdnsPayloadSize > 65535) {
+      throw new IllegalArgumentException("invalid value for " + DNS_QUERY_TIMEOUT_MSECS + ", " + DNS_QUERY_RETRIES + " or " + DNS_EDNS_PAYLOAD_SIZE);
+    }
+    mTransport = pConfiguration.getProperty(DNS_TRANSPORT, DNS_TRANSPORT_UDP);
+    if (!Arrays.asList(DNS_TRANSPORT_UDP, DNS_TRANSPORT_TCP, DNS_TRANSPORT_PERSISTENT_TCP).contains(mTransport)) {
+      throw new IllegalArgumentException("invalid value for " + DNS_TRANSPORT + ": " + mTransport);
+    }
+    mAddressFamily = pConfiguration.getProperty(DNS_ADDRESS_FAMILY, DNS_ADDRESS_FAMILY_ANY);
+    if (!Arrays.asList(DNS_ADDRESS_FAMILY_ANY, DNS_ADDRESS_FAMILY_IPV4, DNS_ADDRESS_FAMILY_IPV6).contains(mAddressFamily)) {
+      throw new IllegalArgumentException("invalid value for " + DNS_ADDRESS_FAMILY + ": " + mAddressFamily);
+    }
+
+    // pinned nameservers are given as ns1.example.com=192.0.2.1,ns2.example.com=2001:db8::1
+    String pinned = pConfiguration.getProperty(DNS_PINNED_NAMESERVERS, "");
+    for (String entry : pinned.split(",")) {
+      if ("".equals(entry.trim())) {
+        continue;
+      }
+      String[] parts = entry.trim().split("=", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("invalid entry in " + DNS_PINNED_NAMESERVERS + ": " + entry);
+      }
+      try {
+        // only literal addresses are accepted here, so this never causes a lookup
+        pin(parts[0], InetAddress.getByName(parts[1].trim()));
+      } catch (UnknownHostException uhe) {
+        throw new IllegalArgumentException("invalid address in " + DNS_PINNED_NAMESERVERS + ": " + entry, uhe);
+      }
+    }
+  }
+
+
+  /**
+   * Pins the given nameserver to pre-resolved addresses, so that its hostname is never resolved
+   * @param pNameserver nameserver hostname
+   * @param pAddresses addresses of the nameserver
+   */
+  public void pin (String pNameserver, InetAddress... pAddresses) {
+    if (pAddresses == null || pAddresses.length == 0) {
+      return;
+    }
+    String key = NameserverSet.normalize(pNameserver);
+    InetAddress[] previous = mPinnedAddresses.put(key, pAddresses);
+    if (previous != null && !Arrays.equals(previous, pAddresses)) {
+      // the addresses changed, so the resolver has to be built again
+      discard(mResolvers.remove(key));
+    }
+  }
+
+
+  /**
+   * Records the glue addresses of the given nameserver, which are used instead of resolving its hostname
+   * unless the nameserver is pinned or none of them belongs to the configured address family
+   * @param pNameserver nameserver hostname
+   * @param pAddresses glue addresses of the nameserver
+   */
+  public void addGlue (String pNameserver, InetAddress... pAddresses) {
+    if (pAddresses == null || pAddresses.length == 0) {
+      return;
+    }
+    String key = NameserverSet.normalize(pNameserver);
+    InetAddress[] previous = mGlueAddresses.put(key, pAddresses);
+    if (previous != null && !Arrays.equals(previous, pAddresses) && !mPinnedAddresses.containsKey(key)) {
+      discard(mResolvers.remove(key));
+    }
+  }
+
+
+  /**
+   * Returns the resolver for the given nameserver, building it the first time
+   * @param pNameserver nameserver hostname
+   * @return resolver sending queries to the nameserver
+   * @throws UnknownHostException if the nameserver address cannot be resolved
+   */
+  public Resolver getResolver (String pNameserver) throws UnknownHostException {
+    String key = NameserverSet.normalize(pNameserver);
+    Resolver resolver = mResolvers.get(key);
+    if (resolver == null) {
+      resolver = buildResolver(key);
+      Resolver existing = mResolvers.putIfAbsent(key, resolver);
+      if (existing != null) {
+        discard(resolver);
+        resolver = existing;
+      }
+    }
+    return resolver;
+  }
+
+
+  /**
+   * Computes the longest time a single query may take, including its retries
+   * @return query time in milliseconds
+   */
+  public long getMaxQueryMsecs () {
+    return (long)mTimeoutMsecs * (mRetries + 1);
+  }
+
+
+  /**
+   * Builds the resolver for the given nameserver
+   * @param pNameserver normalized nameserver hostname
+   * @return resolver
+   * @throws UnknownHostException if the nameserver address cannot be resolved
+   */
+  private Resolver buildResolver (String pNameserver) throws UnknownHostException {
+    InetAddress address = selectAddress(pNameserver);
+    mLogger.debug("buildResolver - using address " + address.getHostAddress() + " for nameserver " + pNameserver + " over " + mTransport);
+    Resolver resolver;
+    if (DNS_TRANSPORT_PERSISTENT_TCP.equals(mTransport)) {
+      resolver = new PersistentTcpResolver(new InetSocketAddress(address, SimpleResolver.DEFAULT_PORT));
+    } else {
+      resolver = new SimpleResolver(address.getHostAddress());
+      // over UDP a truncated answer is asked again over TCP, unless truncation is ignored, which it never is here
+      resolver.setTCP(DNS_TRANSPORT_TCP.equals(mTransport));
+    }
+    if (mEdnsPayloadSize > 0) {
+      resolver.setEDNS(0, mEdnsPayloadSize, 0, null);
+    }
+    resolver.setTimeout(mTimeoutMsecs / 1000, mTimeoutMsecs % 1000);            // set a timeout to avoid waiting forever for a lookup
+
+    if (mRetries > 0) {
+      // the extended resolver sends the query again when it times out, counting the first try as well
+      ExtendedResolver retrying = new ExtendedResolver(new Resolver[] { resolver });
+      retrying.setLoadBalance(false);
+      retrying.setRetries(mRetries + 1);
+      resolver = retrying;
+    }
+    return resolver;
+  }
+
+
+  /**
+   * Releases a resolver which is no longer used, closing its connection if it keeps one open
+   * @param pResolver resolver, can be null
+   */
+  private static void discard (Resolver pResolver) {
+    Resolver resolver = pResolver instanceof ExtendedResolver ? ((ExtendedResolver)pResolver).getResolver(0) : pResolver;
+    if (resolver instanceof Closeable) {
+      try {
+        ((Closeable)resolver).close();
+      } catch (IOException ioe) {
+        mLogger.debug("discard - IOException closing resolver", ioe);
+      }
+    }
+  }
+
+
+  /**
+   * Selects the address to use for the given nameserver, according to the configured address family
+   * @param pNameserver normalized nameserver hostname
+   * @return address of the nameserver
+   * @throws UnknownHostException if no suitable address is found
+   */
+  private InetAddress selectAddress (String pNameserver) throws UnknownHostException {
+    InetAddress[] pinned = mPinnedAddresses.get(pNameserver);
+    if (pinned != null) {
+      InetAddress address = selectAddress(pinned);
+      if (address == null) {
+        throw new UnknownHostException("no " + mAddressFamily + " address pinned for nameserver " + pNameserver);
+      }
+      return address;
+    }
+
+    // glue may hold only part of the addresses, so resolve the hostname when it has none of the right family
+    InetAddress[] glue = mGlueAddresses.get(pNameserver);
+    InetAddress address = glue == null ? null : selectAddress(glue);
+    if (address == null) {
+      address = selectAddress(InetAddress.getAllByName(pNameserver));
+    }
+    if (address == null) {
+      throw new UnknownHostException("no " + mAddressFamily + " address found for nameserver " + pNameserver);
+    }
+    return address;
+  }
+
+
+  /**
+   * Selects the first of the given addresses which belongs to the configured address family
+   * @param pAddresses addresses
+   * @return selected address, or null if none belongs to the configured address family
+   */
+  private InetAddress selectAddress (InetAddress[] pAddresses) {
+    for (InetAddress address : pAddresses) {
+      if (DNS_ADDRESS_FAMILY_ANY.equals(mAddressFamily)
+              || (DNS_ADDRESS_FAMILY_IPV4.equals(mAddressFamily) && address instanceof Inet4Address)
+              || (DNS_ADDRESS_FAMILY_IPV6.equals(mAddressFamily) && address instanceof Inet6Address)) {
+        return address;
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,138 @@
+package com.datafaber.dehydrated;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools shared by the hooks and the DNS tools
+ * <p>
+ * On JDK 21 and later every task runs on its own virtual thread, so that thousands of pollers sleeping between
+ * two queries don't hold thousands of platform threads; on older JVMs the tasks run on pools of daemon threads.
+ * Virtual threads can be turned off with -Ddehydrated.hooks.virtualThreads=false
+ * <p>
+ * With bounded pools a task waiting for other tasks must never share a pool with them, or the pool could fill up
+ * with waiting tasks: challenge-level tasks, which wait for queries, run on {@link #tasks()}, while the
+ * queries themselves, which never wait for other tasks, run on {@link #queries()}; the connections of the hook server,
+ * which wait for challenge-level tasks, run on {@link #connections()}
+ * <p>
+ * The query and connection pools aren't bounded: a nameserver poller holds its thread while sleeping until its deadline, so a poller
+ * queued behind the others would only start once its own deadline has passed; the pool grows instead with the
+ * number of concurrent queries and shrinks back when they're done
+ */
+public class TaskExecutors {
+
+  // system property to turn off virtual threads
+  private static final String VIRTUAL_THREADS_PROPERTY = "dehydrated.hooks.virtualThreads";
+
+  // size of the bounded task pool used when virtual threads aren't available
+  private static final int MAX_TASK_THREADS = 32;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.TaskExecutors");
+
+  private static final ExecutorService VIRTUAL = newVirtualThreadExecutor();
+  private static final ExecutorService TASKS = VIRTUAL != null ? VIRTUAL : newBoundedExecutor("dehydrated-hooks-task-", MAX_TASK_THREADS);
+  private static final ExecutorService QUERIES = VIRTUAL != null ? VIRTUAL : newGrowingExecutor("dehydrated-hooks-query-");
+  private static final ExecutorService CONNECTIONS = VIRTUAL != null ? VIRTUAL : newGrowingExecutor("dehydrated-hooks-connection-");
+
+
+  private TaskExecutors () {
+  }
+
+
+  /**
+   * Returns the executor for tasks which wait for other tasks, such as processing or verifying a challenge
+   * @return task executor
+   */
+  public static ExecutorService tasks () {
+    return TASKS;
+  }
+
+
+  /**
+   * Returns the executor for single network queries, such as polling a nameserver or calling an API,
+   * which never wait for other tasks
+   * @return query executor
+   */
+  public static ExecutorService queries () {
+    return QUERIES;
+  }
+
+
+  /**
+   * Returns the executor for the connections of the hook server, which wait for challenge-level tasks
+   * @return connection executor
+   */
+  public static ExecutorService connections () {
+    return CONNECTIONS;
+  }
+
+
+  /**
+   * Builds an executor running each task on a new virtual thread, looked up by reflection so that this class
+   * still runs on the JVMs without virtual threads
+   * @return virtual thread executor, or null if not available or turned off
+   */
+  private static ExecutorService newVirtualThreadExecutor () {
+    if ("false".equalsIgnoreCase(System.getProperty(VIRTUAL_THREADS_PROPERTY))) {
+      mLogger.debug("newVirtualThreadExecutor - virtual threads turned off");
+      return null;
+    }
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ExecutorService executor = (ExecutorService)factory.invoke(null);
+      mLogger.debug("newVirtualThreadExecutor - running tasks on virtual threads");
+      return executor;
+    } catch (ReflectiveOperationException roe) {
+      mLogger.debug("newVirtualThreadExecutor - virtual threads not available, running tasks on thread pools");
+      return null;
+    }
+  }
+
+
+  /**
+   * Builds a bounded pool of daemon threads, which never blocks the JVM exit; tasks beyond the bound are queued
+   * @param pNamePrefix prefix of the thread names
+   * @param pMaxThreads maximum number of threads
+   * @return executor
+   */
+  private static ExecutorService newBoundedExecutor (String pNamePrefix, int pMaxThreads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(pMaxThreads, pMaxThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), newDaemonThreadFactory(pNamePrefix));
+    // idle threads go away, so that a long-running server doesn't keep the whole pool around
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+
+  /**
+   * Builds a pool of daemon threads which starts a new thread whenever all the others are busy, so that no task
+   * ever waits in a queue; idle threads go away after a minute
+   * @param pNamePrefix prefix of the thread names
+   * @return executor
+   */
+  private static ExecutorService newGrowingExecutor (String pNamePrefix) {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), newDaemonThreadFactory(pNamePrefix));
+  }
+
+
+  /**
+   * Builds a factory of daemon threads, which never block the JVM exit
+   * @param pNamePrefix prefix of the thread names
+   * @return thread factory
+   */
+  private static ThreadFactory newDaemonThreadFactory (String pNamePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+      @Override
+      public Thread newThread (Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, pNamePrefix + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+}
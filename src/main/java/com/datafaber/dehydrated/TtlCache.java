@@ -0,0 +1,238 @@
+package com.datafaber.dehydrated;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * String cache whose entries expire after a given time
+ * <p>
+ * Entries are always kept in memory, so that a long-running process reuses them; when a cache directory is configured
+ * they are also persisted to a file in that directory, so that they survive between runs of the hooks. Several processes
+ * may share the file, such as the hooks run by dehydrated and the detached job verifying the cleanups, so every change
+ * is merged into the file as it is on disk, under a lock, rather than overwriting it with the entries of one process
+ */
+public class TtlCache {
+
+  // property name of the directory where caches are persisted
+  private static final String CACHE_DIR = "CACHE_DIR";
+
+  // separator between the expiry time and the value of a persisted entry
+  private static final char EXPIRY_SEPARATOR = '\t';
+
+  // extension of the file locked while the cache file is updated
+  private static final String LOCK_SUFFIX = ".lock";
+
+  // locks of the cache files within this JVM, where a second FileLock on the same file would throw
+  private static final ConcurrentMap<String, ReentrantLock> mFileLocks = new ConcurrentHashMap<>();
+
+  private final File mFile;
+  private final ConcurrentMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.TtlCache");
+
+
+  /**
+   * Builds the cache with the given name, persisted to the configured cache directory if any
+   * @param pConfiguration configuration properties
+   * @param pName name of the cache, used as file name
+   * @return cache
+   */
+  public static TtlCache fromConfiguration (Properties pConfiguration, String pName) {
+    String directory = pConfiguration.getProperty(CACHE_DIR);
+    if (directory == null || "".equals(directory.trim())) {
+      return new TtlCache(null);
+    }
+    return new TtlCache(new File(directory.trim(), pName + ".properties"));
+  }
+
+
+  /**
+   * Builds a cache
+   * @param pFile file where the entries are persisted, null to keep them in memory only
+   */
+  public TtlCache (File pFile) {
+    mFile = pFile;
+    if (mFile != null) {
+      load();
+    }
+  }
+
+
+  /**
+   * Retrieves the value of the given key
+   * @param pKey key
+   * @return value, or null if missing or expired
+   */
+  public String get (String pKey) {
+    Entry entry = mEntries.get(pKey);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.isExpired()) {
+      mEntries.remove(pKey, entry);
+      return null;
+    }
+    return entry.mValue;
+  }
+
+
+  /**
+   * Stores the given value
+   * @param pKey key
+   * @param pValue value
+   * @param pTtlMsecs time after which the value expires
+   */
+  public void put (String pKey, String pValue, long pTtlMsecs) {
+    if (pTtlMsecs <= 0) {
+      return;
+    }
+    mEntries.put(pKey, new Entry(pValue, System.currentTimeMillis() + pTtlMsecs));
+    save(pKey);
+  }
+
+
+  /**
+   * Removes the given key
+   * @param pKey key
+   */
+  public void remove (String pKey) {
+    // saved even if not in memory, since another process may have persisted it since this one loaded the file
+    mEntries.remove(pKey);
+    save(pKey);
+  }
+
+
+  /**
+   * Loads the persisted entries, skipping the expired ones
+   */
+  private void load () {
+    String ctx = "load - ";
+    if (!mFile.exists()) {
+      return;
+    }
+    Properties persisted;
+    try {
+      persisted = read();
+    } catch (IOException ioe) {
+      mLogger.warn(ctx + "IOException reading cache file " + mFile + ", starting with an empty cache", ioe);
+      return;
+    }
+    for (String key : persisted.stringPropertyNames()) {
+      Entry entry = parse(key, persisted.getProperty(key));
+      if (entry != null && !entry.isExpired()) {
+        mEntries.put(key, entry);
+      }
+    }
+  }
+
+
+  /**
+   * Persists the given key as it is in memory, merging it into the cache file as it is on disk and dropping
+   * the expired entries, then replacing the file atomically
+   * @param pKey key which was stored or removed
+   */
+  private void save (String pKey) {
+    String ctx = "save - ";
+    if (mFile == null) {
+      return;
+    }
+    File directory = mFile.getAbsoluteFile().getParentFile();
+    ReentrantLock fileLock = mFileLocks.computeIfAbsent(mFile.getAbsolutePath(), pPath -> new ReentrantLock());
+    fileLock.lock();
+    try {
+      Files.createDirectories(directory.toPath());
+      try (FileChannel lockChannel = FileChannel.open(new File(directory, mFile.getName() + LOCK_SUFFIX).toPath(),
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        // released when the channel is closed
+        lockChannel.lock();
+        Properties persisted = mFile.exists() ? read() : new Properties();
+        for (String key : persisted.stringPropertyNames()) {
+          Entry entry = parse(key, persisted.getProperty(key));
+          if (entry == null || entry.isExpired()) {
+            persisted.remove(key);
+          }
+        }
+        Entry entry = mEntries.get(pKey);
+        if (entry == null || entry.isExpired()) {
+          persisted.remove(pKey);
+        } else {
+          persisted.setProperty(pKey, entry.mExpiresAt + String.valueOf(EXPIRY_SEPARATOR) + entry.mValue);
+        }
+
+        File tempFile = File.createTempFile(mFile.getName(), ".tmp", directory);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+          persisted.store(writer, null);
+        }
+        Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+    } catch (IOException ioe) {
+      mLogger.warn(ctx + "IOException writing cache file " + mFile, ioe);
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+
+  /**
+   * Reads the cache file
+   * @return persisted entries, as written to the file
+   * @throws IOException if errors
+   */
+  private Properties read () throws IOException {
+    Properties persisted = new Properties();
+    try (Reader reader = new InputStreamReader(new FileInputStream(mFile), StandardCharsets.UTF_8)) {
+      persisted.load(reader);
+    }
+    return persisted;
+  }
+
+
+  /**
+   * @param pKey key of a persisted entry
+   * @param pPersistedValue expiry time and value of the entry, as written to the cache file
+   * @return entry, or null if invalid
+   */
+  private Entry parse (String pKey, String pPersistedValue) {
+    int separator = pPersistedValue.indexOf(EXPIRY_SEPARATOR);
+    if (separator < 0) {
+      return null;
+    }
+    try {
+      return new Entry(pPersistedValue.substring(separator + 1), Long.parseLong(pPersistedValue.substring(0, separator)));
+    } catch (NumberFormatException nfe) {
+      mLogger.warn("parse - skipping invalid entry " + pKey + " in cache file " + mFile);
+      return null;
+    }
+  }
+
+
+  /**
+   * A cached value with its expiry time
+   */
+  private static class Entry {
+
+    private final String mValue;
+    private final long mExpiresAt;
+
+    private Entry (String pValue, long pExpiresAt) {
+      mValue = pValue;
+      mExpiresAt = pExpiresAt;
+    }
+
+    private boolean isExpired () {
+      return System.currentTimeMillis() >= mExpiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,475 @@
+package com.datafaber.dehydrated.hooks;
+
+import com.datafaber.dehydrated.ApiClient;
+import com.datafaber.dehydrated.DNSTools;
+import com.datafaber.dehydrated.NameserverSet;
+import com.datafaber.dehydrated.TaskExecutors;
+import com.datafaber.dehydrated.TtlCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Common behaviour of the hooks which deploy the challenges as DNS records
+ * <p>
+ * Every challenge is processed as a batch, asynchronously; the blocking entry points wait for the asynchronous ones
+ * <p>
+ * How a batch of challenges is handled:
+ * challengeStart
+ *  create the _acme-challenge.hostname TXT record of every challenge
+ *  wait once for the records to propagate, unless the nameservers are probed right away
+ *  poll the nameservers of every challenge concurrently until they all have the newly-created TXT record
+ * challengeStop
+ *  delete the _acme-challenge.hostname TXT record of every challenge
+ *  wait once for the deletions to propagate, unless the nameservers are probed right away
+ *  poll the nameservers of every challenge concurrently until they all have removed the TXT record
+ * <p>
+ * What challengeStart learns about a challenge, such as the ids of its zone and record or the nameservers of the zone,
+ * is kept in a state store keyed by hostname and token (or value), persisted like the other caches, so that challengeStop can
+ * delete the record without looking anything up again
+ */
+public abstract class AbstractDNSHook implements Hook {
+
+  // property names common to the DNS hooks
+  private static final String DNS_RESOLUTION_TIMEOUT_SECS = "DNS_RESOLUTION_TIMEOUT_SECS";
+  private static final String DNS_RESOLVER = "DNS_RESOLVER";
+  private static final String ZONE_CACHE_TTL_SECS = "ZONE_CACHE_TTL_SECS";
+  private static final String ZONE_CACHE_TTL_SECS_DEFAULT = "3600";
+
+  // how long the state of a deployed challenge is kept for its cleanup, well beyond the life of an ACME order
+  private static final long CHALLENGE_STATE_TTL_MSECS = 24 * 60 * 60 * 1000L;
+
+  // name of the challenge state holding the nameservers of the zone
+  private static final String NAMESERVERS_STATE = "nameservers";
+
+  private final DNSTools mDnsTools;
+  private final ApiClient mApiClient;
+  private final TtlCache mZoneCache;
+  private final long mZoneCacheTtlMsecs;
+  private final TtlCache mChallengeStates;
+  // serializes the read-modify-write of a challenge state, which may write the cache file
+  private final ReentrantLock mChallengeStatesLock = new ReentrantLock();
+  private final int mDnsResolutionTimeoutSecs;
+
+  private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.hooks.AbstractDNSHook");
+
+
+  /**
+   * Initializes the DNS settings common to all hooks
+   * @param pConfiguration configuration properties
+   */
+  protected AbstractDNSHook (Properties pConfiguration) {
+    mDnsTools = new DNSTools(pConfiguration.getProperty(DNS_RESOLVER), pConfiguration);
+    mApiClient = new ApiClient(pConfiguration);
+    mDnsResolutionTimeoutSecs = Integer.parseInt(pConfiguration.getProperty(DNS_RESOLUTION_TIMEOUT_SECS));
+    mZoneCache = TtlCache.fromConfiguration(pConfiguration, "zones");
+    mZoneCacheTtlMsecs = Long.parseLong(pConfiguration.getProperty(ZONE_CACHE_TTL_SECS, ZONE_CACHE_TTL_SECS_DEFAULT)) * 1000L;
+    mChallengeStates = TtlCache.fromConfiguration(pConfiguration, "challenges");
+  }
+
+
+  /**
+   * @return client for the provider's API, shared by all the requests of this hook
+   */
+  protected ApiClient getApiClient () {
+    return mApiClient;
+  }
+
+
+  /**
+   * Releases the connections to the provider's API
+   * @throws IOException if errors
+   */
+  @Override
+  public void close () throws IOException {
+    mApiClient.close();
+  }
+
+
+  /**
+   * Retrieves an id, such as a zone id, previously resolved via the provider's API
+   * @param pKey key identifying the id, including the API endpoint
+   * @return cached id, or null if not cached or expired
+   */
+  protected String getCachedId (String pKey) {
+    return mZoneCache.get(pKey);
+  }
+
+
+  /**
+   * Caches an id resolved via the provider's API, for the configured time
+   * @param pKey key identifying the id, including the API endpoint
+   * @param pId id to cache
+   */
+  protected void cacheId (String pKey, String pId) {
+    mZoneCache.put(pKey, pId, mZoneCacheTtlMsecs);
+  }
+
+
+  /**
+   * Looks up every suffix of the given hostname concurrently and picks the most specific zone which exists
+   * @param pHostname hostname, with or without the trailing dot
+   * @param pProbe looks up a zone by name, given without the trailing dot; returns the zone id, empty if the zone
+   *               doesn't exist, or null if it can't tell
+   * @return zone id, or null if no zone was found that way or errors
+   */
+  protected String probeMostSpecificZone (String pHostname, Function<String, Optional<String>> pProbe) {
+    String ctx = "probeMostSpecificZone - ";
+    String hostname = pHostname.endsWith(".") ? pHostname.substring(0, pHostname.length() - 1) : pHostname;
+
+    // candidate zone names, from the most specific one down to the one with two labels
+    List<String> candidates = new ArrayList<>();
+    String candidate = hostname;
+    while (candidate.indexOf('.') > 0) {
+      candidates.add(candidate);
+      candidate = candidate.substring(candidate.indexOf('.') + 1);
+    }
+
+    List<Future<Optional<String>>> probes = new ArrayList<>(candidates.size());
+    for (String zoneName : candidates) {
+      probes.add(TaskExecutors.queries().submit(() -> pProbe.apply(zoneName)));
+    }
+    try {
+      for (Future<Optional<String>> probe : probes) {
+        Optional<String> id = probe.get();
+        if (id == null) {
+          // can't tell whether this more specific zone exists, so don't trust the less specific ones
+          return null;
+        }
+        if (id.isPresent()) {
+          // the candidates are sorted from the most specific, so the first zone found is the best match
+          return id.get();
+        }
+      }
+    } catch (ExecutionException ee) {
+      mLogger.error(ctx + "ExecutionException looking up zones by name", ee.getCause());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+
+  /**
+   * Retrieves what was recorded about the given challenge when it was deployed
+   * @param pChallenge challenge
+   * @return recorded state, empty if none
+   */
+  protected JSONObject getChallengeState (Challenge pChallenge) {
+    String ctx = "getChallengeState - ";
+    String state = mChallengeStates.get(getStateKey(pChallenge));
+    if (state != null) {
+      try {
+        return new JSONObject(state);
+      } catch (JSONException je) {
+        mLogger.warn(ctx + "ignoring invalid state of challenge " + pChallenge, je);
+      }
+    }
+    return new JSONObject();
+  }
+
+
+  /**
+   * Records a piece of state of the given challenge, for its cleanup
+   * @param pChallenge challenge
+   * @param pName name of the piece of state
+   * @param pValue value of the piece of state
+   */
+  protected void putChallengeState (Challenge pChallenge, String pName, String pValue) {
+    mChallengeStatesLock.lock();
+    try {
+      JSONObject state = getChallengeState(pChallenge);
+      state.put(pName, pValue);
+      mChallengeStates.put(getStateKey(pChallenge), state.toString(), CHALLENGE_STATE_TTL_MSECS);
+    } finally {
+      mChallengeStatesLock.unlock();
+    }
+  }
+
+
+  /**
+   * Forgets the state of the given challenge, once it has been cleaned up
+   * @param pChallenge challenge
+   */
+  protected void removeChallengeState (Challenge pChallenge) {
+    mChallengeStates.remove(getStateKey(pChallenge));
+  }
+
+
+  /**
+   * Builds the key of the state of a challenge: its hostname and its token, or its value when called without tokens,
+   * so that the two challenges of a certificate for both a domain and its wildcard never share their state
+   * @param pChallenge challenge
+   * @return key
+   */
+  private static String getStateKey (Challenge pChallenge) {
+    String discriminator = pChallenge.getToken() != null ? pChallenge.getToken() : pChallenge.getValue();
+    return NameserverSet.normalize(pChallenge.getHostname()) + " " + (discriminator == null ? "" : discriminator);
+  }
+
+
+  /**
+   * Creates the _acme-challenge TXT record for the given challenge via the provider's API
+   * @param pChallenge challenge to deploy
+   * @return true if the challenge record was created, false otherwise
+   */
+  protected abstract boolean deployChallenge (Challenge pChallenge);
+
+
+  /**
+   * Deletes the _acme-challenge TXT record for the given challenge via the provider's API
+   * @param pChallenge challenge to remove
+   * @return true if the challenge record was deleted, false otherwise
+   */
+  protected abstract boolean removeChallenge (Challenge pChallenge);
+
+
+  /**
+   * Creates the _acme-challenge TXT records for all the given challenges; hooks which can group the changes
+   * to their provider's API override this, the default creates the records one at a time
+   * @param pChallenges challenges to deploy
+   * @return for each challenge, in the same order, true if its record was created, false otherwise
+   */
+  protected boolean[] deployChallenges (List<Challenge> pChallenges) {
+    boolean[] result = new boolean[pChallenges.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = deployChallenge(pChallenges.get(i));
+    }
+    return result;
+  }
+
+
+  /**
+   * Deletes the _acme-challenge TXT records for all the given challenges; hooks which can group the changes
+   * to their provider's API override this, the default deletes the records one at a time
+   * @param pChallenges challenges to remove
+   * @return for each challenge, in the same order, true if its record was deleted, false otherwise
+   */
+  protected boolean[] removeChallenges (List<Challenge> pChallenges) {
+    boolean[] result = new boolean[pChallenges.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = removeChallenge(pChallenges.get(i));
+    }
+    return result;
+  }
+
+
+  /**
+   * Entry point for the challenge-start hook
+   * @param pHostname hostname to create the record for
+   * @param pValue challenge value
+   * @return true if the record was correctly deployed on all authoritative nameservers of the zone, false otherwise
+   */
+  public boolean challengeStart (String pHostname, String pValue) {
+    return challengeStart(Collections.singletonList(new Challenge(pHostname, null, pValue)));
+  }
+
+
+  /**
+   * Entry point for the challenge-end hook
+   * @param pHostname hostname to delete the record for
+   * @return true if the record was correctly removed from all authoritative nameservers of the zone, false otherwise
+   */
+  public boolean challengeStop (String pHostname) {
+    return challengeStop(Collections.singletonList(new Challenge(pHostname, null, null)));
+  }
+
+
+  /**
+   * Entry point for the challenge-start hook with one or more challenges
+   * @param pChallenges challenges to create the records for
+   * @return true if all the records were correctly deployed on all authoritative nameservers of their zones, false otherwise
+   */
+  public boolean challengeStart (List<Challenge> pChallenges) {
+    return allSucceeded("challengeStart - ", challengeStartAsync(pChallenges));
+  }
+
+
+  /**
+   * Entry point for the challenge-end hook with one or more challenges
+   * @param pChallenges challenges to delete the records for
+   * @return true if all the records were correctly removed from all authoritative nameservers of their zones, false otherwise
+   */
+  public boolean challengeStop (List<Challenge> pChallenges) {
+    return allSucceeded("challengeStop - ", challengeStopAsync(pChallenges));
+  }
+
+
+  /**
+   * Asynchronous entry point for the challenge-start hook
+   * @param pChallenge challenge to create the record for
+   * @return future completed with the result of the challenge
+   */
+  public CompletableFuture<ChallengeResult> challengeStartAsync (Challenge pChallenge) {
+    return challengeStartAsync(Collections.singletonList(pChallenge)).thenApply(results -> results.get(0));
+  }
+
+
+  /**
+   * Asynchronous entry point for the challenge-end hook
+   * @param pChallenge challenge to delete the record for
+   * @return future completed with the result of the challenge
+   */
+  public CompletableFuture<ChallengeResult> challengeStopAsync (Challenge pChallenge) {
+    return challengeStopAsync(Collections.singletonList(pChallenge)).thenApply(results -> results.get(0));
+  }
+
+
+  /**
+   * Asynchronous entry point for the challenge-start hook with one or more challenges
+   * @param pChallenges challenges to create the records for
+   * @return future completed with one result per challenge, in the same order
+   */
+  public CompletableFuture<List<ChallengeResult>> challengeStartAsync (List<Challenge> pChallenges) {
+    return CompletableFuture.supplyAsync(() -> deployChallenges(pChallenges), TaskExecutors.tasks()).
+            thenCompose(deployed -> verifyChallenges(pChallenges, deployed, true));
+  }
+
+
+  /**
+   * Asynchronous entry point for the challenge-end hook with one or more challenges
+   * @param pChallenges challenges to delete the records for
+   * @return future completed with one result per challenge, in the same order
+   */
+  public CompletableFuture<List<ChallengeResult>> challengeStopAsync (List<Challenge> pChallenges) {
+    return CompletableFuture.supplyAsync(() -> removeChallenges(pChallenges), TaskExecutors.tasks()).
+            thenCompose(removed -> verifyChallenges(pChallenges, removed, false));
+  }
+
+
+  /**
+   * Deletes the records of the given challenges, leaving their verification to challengeVerifyDeletedAsync
+   * @param pChallenges challenges to delete the records for
+   * @return true if all the records were deleted via the API, false otherwise
+   */
+  public boolean challengeDelete (List<Challenge> pChallenges) {
+    String ctx = "challengeDelete - ";
+    boolean[] removed = removeChallenges(pChallenges);
+    boolean result = true;
+    for (int i = 0; i < removed.length; i++) {
+      if (!removed[i]) {
+        mLogger.error(ctx + ChallengeResult.failure(pChallenges.get(i), "could not delete challenge record"));
+        result = false;
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * Polls the authoritative nameservers of the given challenges, whose records were deleted by challengeDelete
+   * @param pChallenges challenges to verify
+   * @return future completed with one result per challenge, in the same order
+   */
+  public CompletableFuture<List<ChallengeResult>> challengeVerifyDeletedAsync (List<Challenge> pChallenges) {
+    boolean[] removed = new boolean[pChallenges.size()];
+    Arrays.fill(removed, true);
+    // the wait for the propagation happens on the task executor as well, not in the caller's thread
+    return CompletableFuture.completedFuture(removed).
+            thenComposeAsync(allRemoved -> verifyChallenges(pChallenges, allRemoved, false), TaskExecutors.tasks());
+  }
+
+
+  /**
+   * Waits for the given results and logs the failures
+   * @param pCtx logging context
+   * @param pResults future results
+   * @return true if all the challenges succeeded, false otherwise
+   */
+  private boolean allSucceeded (String pCtx, CompletableFuture<List<ChallengeResult>> pResults) {
+    boolean result = true;
+    try {
+      for (ChallengeResult challengeResult : pResults.join()) {
+        if (!challengeResult.isSuccess()) {
+          mLogger.error(pCtx + challengeResult);
+          result = false;
+        }
+      }
+    } catch (CompletionException ce) {
+      mLogger.error(pCtx + "unexpected error processing challenges", ce.getCause());
+      result = false;
+    }
+    return result;
+  }
+
+
+  /**
+   * Polls the authoritative nameservers of all the given challenges concurrently, once the records have propagated
+   * @param pChallenges challenges to verify
+   * @param pChanged for each challenge, whether its record was successfully created or deleted via the API
+   * @param pCheckPresence true to poll for presence, false to poll for absence
+   * @return future completed with one result per challenge, in the same order
+   */
+  private CompletableFuture<List<ChallengeResult>> verifyChallenges (List<Challenge> pChallenges, boolean[] pChanged, boolean pCheckPresence) {
+    List<CompletableFuture<ChallengeResult>> results = new ArrayList<>(pChallenges.size());
+    boolean allChanged = true;
+    for (boolean changed : pChanged) {
+      allChanged &= changed;
+    }
+    if (!allChanged) {
+      // the batch has failed anyway, no point in waiting for the other records
+      for (int i = 0; i < pChanged.length; i++) {
+        Challenge challenge = pChallenges.get(i);
+        results.add(CompletableFuture.completedFuture(pChanged[i] ?
+                ChallengeResult.failure(challenge, "not verified because another record of the batch could not be changed") :
+                ChallengeResult.failure(challenge, "could not " + (pCheckPresence ? "create" : "delete") + " challenge record")));
+      }
+    } else {
+      mDnsTools.waitForPropagation();
+      for (Challenge challenge : pChallenges) {
+        results.add(CompletableFuture.supplyAsync(() -> verifyChallenge(challenge, pCheckPresence) ?
+                ChallengeResult.success(challenge) :
+                ChallengeResult.failure(challenge, "record " + (pCheckPresence ? "not found on" : "still present on") + " all authoritative nameservers"),
+                TaskExecutors.tasks()));
+      }
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).
+            thenApply(done -> results.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+  }
+
+
+  /**
+   * Polls the authoritative nameservers of the given challenge
+   * @param pChallenge challenge to verify
+   * @param pCheckPresence true to poll for presence, false to poll for absence
+   * @return true if all the nameservers gave the expected answer, false otherwise
+   */
+  private boolean verifyChallenge (Challenge pChallenge, boolean pCheckPresence) {
+    String ctx = "verifyChallenge - ";
+    String hostname = pChallenge.getHostname();
+    // the cleanup reuses the nameservers found when the challenge was deployed
+    NameserverSet nameservers = pCheckPresence ? null : NameserverSet.fromCacheValue(getChallengeState(pChallenge).optString(NAMESERVERS_STATE, null));
+    if (nameservers == null) {
+      nameservers = mDnsTools.findNameserverSet(hostname);
+      if (pCheckPresence && nameservers != null) {
+        putChallengeState(pChallenge, NAMESERVERS_STATE, nameservers.toCacheValue());
+      }
+    }
+    mLogger.debug(ctx + "found nameservers for " + hostname + " = " + nameservers);
+    if (pCheckPresence) {
+      return mDnsTools.pollNameserversForChallengeRecordPresence(ACME_CHALLENGE_PREFIX + hostname, pChallenge.getValue(), nameservers, mDnsResolutionTimeoutSecs);
+    } else {
+      boolean result = mDnsTools.pollNameserversForChallengeRecordAbsence(ACME_CHALLENGE_PREFIX + hostname, pChallenge.getValue(), nameservers, mDnsResolutionTimeoutSecs);
+      // the challenge is over either way, dehydrated never cleans it up again
+      removeChallengeState(pChallenge);
+      return result;
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package com.datafaber.dehydrated.hooks;
+
+/**
+ * A single DNS challenge as passed by dehydrated: the hostname being validated, the challenge token and the TXT record value
+ */
+public class Challenge {
+
+  private final String mHostname;
+  private final String mToken;
+  private final String mValue;
+
+
+  /**
+   * Builds a challenge
+   * @param pHostname hostname being validated
+   * @param pToken challenge token, can be null
+   * @param pValue value of the TXT record, can be null when cleaning up
+   */
+  public Challenge (String pHostname, String pToken, String pValue) {
+    mHostname = pHostname;
+    mToken = pToken;
+    mValue = pValue;
+  }
+
+
+  /**
+   * @return hostname being validated
+   */
+  public String getHostname () {
+    return mHostname;
+  }
+
+
+  /**
+   * @return challenge token, can be null
+   */
+  public String getToken () {
+    return mToken;
+  }
+
+
+  /**
+   * @return value of the TXT record, can be null
+   */
+  public String getValue () {
+    return mValue;
+  }
+
+
+  @Override
+  public String toString () {
+    return mHostname + " (value = " + mValue + ")";
+  }
+
+}
@@ -0,0 +1,74 @@
+package com.datafaber.dehydrated.hooks;
+
+/**
+ * Outcome of starting or ending a challenge
+ */
+public class ChallengeResult {
+
+  private final Challenge mChallenge;
+  private final boolean mSuccess;
+  private final String mMessage;
+
+
+  /**
+   * Builds a result
+   * @param pChallenge challenge this result is about
+   * @param pSuccess true if the challenge record was deployed or removed on all the authoritative nameservers
+   * @param pMessage description of the failure, null on success
+   */
+  private ChallengeResult (Challenge pChallenge, boolean pSuccess, String pMessage) {
+    mChallenge = pChallenge;
+    mSuccess = pSuccess;
+    mMessage = pMessage;
+  }
+
+
+  /**
+   * @param pChallenge challenge which succeeded
+   * @return successful result
+   */
+  public static ChallengeResult success (Challenge pChallenge) {
+    return new ChallengeResult(pChallenge, true, null);
+  }
+
+
+  /**
+   * @param pChallenge challenge which failed
+   * @param pMessage description of the failure
+   * @return failed result
+   */
+  public static ChallengeResult failure (Challenge pChallenge, String pMessage) {
+    return new ChallengeResult(pChallenge, false, pMessage);
+  }
+
+
+  /**
+   * @return challenge this result is about
+   */
+  public Challenge getChallenge () {
+    return mChallenge;
+  }
+
+
+  /**
+   * @return true if the challenge record was deployed or removed on all the authoritative nameservers
+   */
+  public boolean isSuccess () {
+    return mSuccess;
+  }
+
+
+  /**
+   * @return description of the failure, null on success
+   */
+  public String getMessage () {
+    return mMessage;
+  }
+
+
+  @Override
+  public String toString () {
+    return mChallenge + (mSuccess ? ": success" : ": " + mMessage);
+  }
+
+}
@@ -1,33 +1,57 @@
 package com.datafaber.dehydrated.hooks;
 
-import com.datafaber.dehydrated.DNSTools;
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import com.datafaber.dehydrated.ApiClient.ApiResponse;
+import com.datafaber.dehydrated.ApiException;
+import com.datafaber.dehydrated.TaskExecutors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
-
-public class CloudflareDNSHook implements Hook {
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * dehydrated hooks using the Cloudflare API to manipulate records
+ * <p>
+ * The records of all the challenges in the same zone are created, and deleted, with a single request to the batch
+ * endpoint; if that fails the records are created or deleted with concurrent requests, one per record
+ */
+public class CloudflareDNSHook extends AbstractDNSHook {
 
   // property names specific to this hook
   private static final String CLOUDFLARE_API_ENDPOINT = "CLOUDFLARE_API_ENDPOINT";
   private static final String CLOUDFLARE_API_EMAIL = "CLOUDFLARE_API_EMAIL";
   private static final String CLOUDFLARE_API_KEY = "CLOUDFLARE_API_KEY";
-  private static final String DNS_PROPAGATION_WAIT_SECS = "DNS_PROPAGATION_WAIT_SECS";
-  private static final String DNS_RESOLUTION_TIMEOUT_SECS = "DNS_RESOLUTION_TIMEOUT_SECS";
-  private static final String DNS_RESOLVER = "DNS_RESOLVER";
+
+  // maximum page size allowed when listing zones
+  private static final int ZONES_PER_PAGE = 50;
+
+  // page size when looking up the challenge records of a hostname, far more than there should ever be
+  private static final int RECORDS_PER_PAGE = 100;
+
+  // names of the challenge state written at deploy time for the cleanup
+  private static final String ZONE_ID_STATE = "zoneId";
+  private static final String RECORD_ID_STATE = "recordId";
+
+  // HTTP status of a record which doesn't exist (any more)
+  private static final int HTTP_NOT_FOUND = 404;
 
   private final String mAPIEndpointURL;
   private final String mAPIEmail;
   private final String mAPIKey;
-  private final String mResolver;
-  private final int mPropagationWaitSecs;
-  private final int mDnsResolutionTimeoutSecs;
 
   private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.hooks.CloudflareDNSHook");
 
@@ -37,57 +61,152 @@ public class CloudflareDNSHook implements Hook {
    * @param pConfiguration configuration properties
    */
   public CloudflareDNSHook (Properties pConfiguration) {
+    super(pConfiguration);
     mAPIEndpointURL = pConfiguration.getProperty(CLOUDFLARE_API_ENDPOINT);
     mAPIEmail = pConfiguration.getProperty(CLOUDFLARE_API_EMAIL);
     mAPIKey = pConfiguration.getProperty(CLOUDFLARE_API_KEY);
-    mResolver = pConfiguration.getProperty(DNS_RESOLVER);
-    mPropagationWaitSecs = Integer.parseInt(pConfiguration.getProperty(DNS_PROPAGATION_WAIT_SECS));
-    mDnsResolutionTimeoutSecs = Integer.parseInt(pConfiguration.getProperty(DNS_RESOLUTION_TIMEOUT_SECS));
   }
 
 
   /**
    * Finds the id of the zone to which the given hostname belongs
+   * <p>
+   * Every suffix of the hostname is looked up concurrently with the "name" filter of the API and the most specific
+   * existing zone wins; if none is found that way, or a lookup fails, all the zones of the account are listed
    * @param pHostname hostname
    * @return zone id, or null if not found or errors
    */
   private String findZoneId (String pHostname) {
     String ctx = "findZoneId - ";
-    String url = mAPIEndpointURL + "/zones";
+    String hostname = pHostname.endsWith(".") ? pHostname.substring(0, pHostname.length() - 1) : pHostname;
+
+    String id = probeMostSpecificZone(hostname, zoneName -> {
+      Map<String, Object> query = new HashMap<>();
+      query.put("name", zoneName);
+      query.put("status", "active");
+      JSONObject jsonBody = getZones(query);
+      return jsonBody == null ? null : Optional.ofNullable(findZoneIdByName(jsonBody.getJSONArray("result"), zoneName));
+    });
+    if (id != null) {
+      return id;
+    }
+
+    mLogger.info(ctx + "no zone found by name for " + hostname + ", listing all zones");
+    return findZoneIdInAllZones(hostname);
+  }
+
+
+  /**
+   * Finds the id of the zone having exactly the given name
+   * @param pZones zones returned by the API
+   * @param pZoneName zone name
+   * @return zone id, or null if not found
+   */
+  private String findZoneIdByName (JSONArray pZones, String pZoneName) {
+    for (int i = 0; i < pZones.length(); i++) {
+      JSONObject zone = pZones.getJSONObject(i);
+      if (pZoneName.equalsIgnoreCase(zone.getString("name"))) {
+        return zone.getString("id");
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Finds the id of the most specific zone to which the given hostname belongs, going through all the zones of the account
+   * <p>
+   * The first page tells how many pages there are, the remaining ones are fetched concurrently
+   * @param pHostname hostname, without the trailing dot
+   * @return zone id, or null if not found or errors
+   */
+  private String findZoneIdInAllZones (String pHostname) {
+    String ctx = "findZoneIdInAllZones - ";
+    JSONObject firstPage = getZonesPage(1);
+    if (firstPage == null) {
+      return null;
+    }
+    List<JSONObject> pages = new ArrayList<>();
+    pages.add(firstPage);
+    int totalPages = firstPage.has("result_info") ? firstPage.getJSONObject("result_info").optInt("total_pages", 1) : 1;
+    List<Future<JSONObject>> otherPages = new ArrayList<>();
+    for (int page = 2; page <= totalPages; page++) {
+      int pageNumber = page;
+      otherPages.add(TaskExecutors.queries().submit(() -> getZonesPage(pageNumber)));
+    }
+    try {
+      for (Future<JSONObject> otherPage : otherPages) {
+        JSONObject page = otherPage.get();
+        if (page == null) {
+          // a missing page could hide the right zone, better to fail than to pick a less specific one
+          return null;
+        }
+        pages.add(page);
+      }
+    } catch (ExecutionException ee) {
+      mLogger.error(ctx + "ExecutionException listing zones", ee.getCause());
+      return null;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
 
     String id = null;
+    String bestZoneName = null;
+    for (JSONObject page : pages) {
+      JSONArray zones = page.getJSONArray("result");
+      for (int i = 0; i < zones.length(); i++) {
+        JSONObject zone = zones.getJSONObject(i);
+        String zoneName = zone.getString("name");
+        boolean matches = pHostname.equalsIgnoreCase(zoneName) || pHostname.toLowerCase().endsWith("." + zoneName.toLowerCase());
+        if (matches && (bestZoneName == null || zoneName.length() > bestZoneName.length())) {
+          bestZoneName = zoneName;
+          id = zone.getString("id");
+        }
+      }
+    }
+    return id;
+  }
+
+
+  /**
+   * Retrieves a page of the active zones of the account
+   * @param pPage page number, starting at 1
+   * @return response body, or null if errors
+   */
+  private JSONObject getZonesPage (int pPage) {
+    Map<String, Object> query = new HashMap<>();
+    query.put("status", "active");
+    query.put("page", pPage);
+    query.put("per_page", ZONES_PER_PAGE);
+    return getZones(query);
+  }
+
+
+  /**
+   * Calls the zones API with the given query parameters
+   * @param pQuery query parameters
+   * @return response body, or null if errors
+   */
+  private JSONObject getZones (Map<String, Object> pQuery) {
+    String ctx = "getZones - ";
+    String url = mAPIEndpointURL + "/zones";
     try {
-      // future improvement: handling pagination
-      HttpResponse<String> response = Unirest.get(url).
-              queryString("status", "active").
-              queryString("page", "1").
-              queryString("per-page", 50).
+      ApiResponse response = getApiClient().get(url).
+              queryString(pQuery).
               header("X-Auth-Email", mAPIEmail).
               header("X-Auth-Key", mAPIKey).
               header("Content-Type", "application/json;charset=UTF-8").
               asString();
       if (!checkResponse(response)) {
-        mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
+        mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url + " " + pQuery);
         return null;
       }
-      String body = response.getBody();
-      JSONObject jsonBody = new JSONObject(body);
-      JSONArray zones = jsonBody.getJSONArray("result");
-      if (zones != null && zones.length() > 0) {
-        for (int i = 0; i < zones.length(); i++) {
-          JSONObject zone = zones.getJSONObject(i);
-          String zoneName = zone.getString("name");
-          if (pHostname.contains(zoneName)) {
-            id = zone.getString("id");
-            break;
-          }
-        }
-      }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+      return new JSONObject(response.getBody());
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url + " " + pQuery, ae);
     }
-
-    return id;
+    return null;
   }
 
 
@@ -96,160 +215,477 @@ public class CloudflareDNSHook implements Hook {
    * @param pZoneId zone id
    * @param pHostname hostname to create the record for
    * @param pValue value for the TXT record
-   * @return true if the challenge record was created, false otherwise
+   * @return id of the created record, or null if errors
    */
-  private boolean createChallengeRecord (String pZoneId, String pHostname, String pValue) {
+  private String createChallengeRecord (String pZoneId, String pHostname, String pValue) {
     String ctx = "createChallengeRecord - ";
 
-    boolean result = false;
+    String result = null;
 
-    JSONObject record = new JSONObject();
-    record.put("type", "TXT");
-    record.put("name", ACME_CHALLENGE_PREFIX + pHostname);
-    record.put("content", pValue);
-    record.put("ttl", 1);
+    JSONObject record = buildChallengeRecord(pHostname, pValue);
 
     String url = mAPIEndpointURL + "/zones/" + pZoneId + "/dns_records";
     try {
-      HttpResponse<String> response = Unirest.post(url).
+      ApiResponse response = getApiClient().post(url).
               header("X-Auth-Email", mAPIEmail).
               header("X-Auth-Key", mAPIKey).
               header("Content-Type", "application/json;charset=UTF-8").
               body(record).
               asString();
-      result = checkResponse(response);
-      if (!result) {
+      if (checkResponse(response)) {
+        result = new JSONObject(response.getBody()).getJSONObject("result").getString("id");
+      } else {
         mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
     }
     return result;
   }
 
 
   /**
-   * Deletes the _acme-challenge TXT record for the given hostname in the given zone
-   * @param pZoneId zone id
+   * Builds the _acme-challenge TXT record for the given hostname
    * @param pHostname hostname to create the record for
+   * @param pValue value for the TXT record
+   * @return record
    */
-  private boolean deleteChallengeRecord (String pZoneId, String pHostname) {
-    String ctx = "deleteChallengeRecord - ";
+  private JSONObject buildChallengeRecord (String pHostname, String pValue) {
+    JSONObject record = new JSONObject();
+    record.put("type", "TXT");
+    record.put("name", ACME_CHALLENGE_PREFIX + pHostname);
+    record.put("content", pValue);
+    record.put("ttl", 1);
+    return record;
+  }
 
-    boolean result = false;
 
-    // find the id of the record to delete
-    String recordId = null;
+  /**
+   * Finds the ids of all the _acme-challenge TXT records for the given hostname in the given zone, including
+   * the duplicates left behind by earlier runs
+   * @param pZoneId zone id
+   * @param pHostname hostname to find the records for
+   * @param pValue value of the records, null to find all of them
+   * @return record ids, empty if there are none, or null if errors
+   */
+  private List<String> findChallengeRecordIds (String pZoneId, String pHostname, String pValue) {
+    String ctx = "findChallengeRecordIds - ";
     String url = mAPIEndpointURL + "/zones/" + pZoneId + "/dns_records";
     try {
-      HttpResponse<String> response = Unirest.get(url).
+      ApiResponse response = getApiClient().get(url).
               queryString("type", "TXT").
               queryString("name", ACME_CHALLENGE_PREFIX + pHostname).
+              queryString("per_page", RECORDS_PER_PAGE).
               header("X-Auth-Email", mAPIEmail).
               header("X-Auth-Key", mAPIKey).
               header("Content-Type", "application/json;charset=UTF-8").
               asString();
-      result = checkResponse(response);
-      if (!result) {
+      if (!checkResponse(response)) {
         mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
-        return result;
+        return null;
       }
-      String body = response.getBody();
-      JSONObject jsonBody = new JSONObject(body);
-      JSONArray jsonResult = jsonBody.getJSONArray("result");
-      if (jsonResult.length() > 0) {
-        JSONObject record = jsonResult.getJSONObject(0); // only consider the first record in the result
-        if (record != null && record.has("id")) {
-          recordId = record.getString("id");
+      List<String> ids = new ArrayList<>();
+      JSONArray records = new JSONObject(response.getBody()).getJSONArray("result");
+      for (int i = 0; i < records.length(); i++) {
+        JSONObject record = records.getJSONObject(i);
+        if (hasContent(record, pValue)) {
+          ids.add(record.getString("id"));
         }
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+      return ids;
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
+    }
+    return null;
+  }
+
+
+  /**
+   * @param pRecord TXT record returned by the API
+   * @param pValue challenge value, null to accept any
+   * @return true if the record holds the given value
+   */
+  private static boolean hasContent (JSONObject pRecord, String pValue) {
+    // the content of TXT records may come back quoted
+    String content = pRecord.optString("content");
+    return pValue == null || pValue.equals(content) || ("\"" + pValue + "\"").equals(content);
+  }
+
+
+  /**
+   * Deletes all the _acme-challenge TXT records for the given hostname in the given zone, looking up their ids first
+   * @param pZoneId zone id
+   * @param pHostname hostname to delete the records for
+   * @param pValue value of the records, null to delete all of them
+   * @return true if the challenge records were deleted or there were none, false otherwise
+   */
+  private boolean deleteChallengeRecords (String pZoneId, String pHostname, String pValue) {
+    List<String> recordIds = findChallengeRecordIds(pZoneId, pHostname, pValue);
+    if (recordIds == null) {
+      return false;
+    }
+    for (boolean deleted : deleteRecords(pZoneId, recordIds).values()) {
+      if (!deleted) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Deletes the records with the given ids concurrently
+   * @param pZoneId zone id
+   * @param pRecordIds record ids
+   * @return for each record id, true if the record was deleted, false otherwise
+   */
+  private Map<String, Boolean> deleteRecords (String pZoneId, Collection<String> pRecordIds) {
+    String ctx = "deleteRecords - ";
+    Map<String, Future<Boolean>> deletions = new LinkedHashMap<>();
+    for (String recordId : pRecordIds) {
+      deletions.put(recordId, TaskExecutors.queries().submit(() -> deleteRecord(pZoneId, recordId)));
+    }
+    Map<String, Boolean> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Future<Boolean>> deletion : deletions.entrySet()) {
+      boolean deleted = false;
+      try {
+        deleted = deletion.getValue().get();
+      } catch (ExecutionException ee) {
+        mLogger.error(ctx + "ExecutionException deleting record " + deletion.getKey(), ee.getCause());
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      result.put(deletion.getKey(), deleted);
+    }
+    return result;
+  }
+
+
+  /**
+   * Creates and deletes records of a zone with a single request to the batch endpoint, which applies all of them or none
+   * @param pZoneId zone id
+   * @param pPosts records to create
+   * @param pDeletes ids of the records to delete
+   * @return result of the batch, listing the created records in the same order as they were given, or null if errors
+   */
+  private JSONObject batch (String pZoneId, List<JSONObject> pPosts, Set<String> pDeletes) {
+    String ctx = "batch - ";
+
+    // format for the request body: { "deletes": [{ "id": "..." }, ...], "posts": [{ "type": "TXT", ... }, ...] }
+    JSONObject requestBody = new JSONObject();
+    if (!pDeletes.isEmpty()) {
+      JSONArray deletes = new JSONArray();
+      for (String recordId : pDeletes) {
+        deletes.put(new JSONObject().put("id", recordId));
+      }
+      requestBody.put("deletes", deletes);
+    }
+    if (!pPosts.isEmpty()) {
+      requestBody.put("posts", new JSONArray(pPosts));
     }
 
-    // delete the record
-    url = mAPIEndpointURL + "/zones/" + pZoneId + "/dns_records/" + recordId;
+    String url = mAPIEndpointURL + "/zones/" + pZoneId + "/dns_records/batch";
     try {
-      HttpResponse<String> response = Unirest.delete(url).
+      ApiResponse response = getApiClient().post(url).
               header("X-Auth-Email", mAPIEmail).
               header("X-Auth-Key", mAPIKey).
               header("Content-Type", "application/json;charset=UTF-8").
+              body(requestBody).
               asString();
-      result = checkResponse(response);
-      if (!result) {
-        mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
+      if (checkResponse(response)) {
+        return new JSONObject(response.getBody()).getJSONObject("result");
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+      mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
+    }
+    return null;
+  }
+
+
+  /**
+   * Deletes the record with the given id
+   * @param pZoneId zone id
+   * @param pRecordId record id
+   * @return true if the record was deleted, false otherwise
+   */
+  private boolean deleteRecord (String pZoneId, String pRecordId) {
+    ApiResponse response = sendDeleteRecord(pZoneId, pRecordId);
+    boolean result = checkResponse(response);
+    if (!result && response != null) {
+      mLogger.error("deleteRecord - API endpoint returned " + response.getStatus() + " deleting record " + pRecordId + " of zone " + pZoneId);
     }
     return result;
   }
 
 
   /**
-   * Entry point for the challenge-start hook
-   * @param pHostname hostname to create the record for
-   * @param pValue challenge value
-   * @return true if the record was correctly deployed on all authoritative nameservers of the zone, false otherwise
+   * Sends the request deleting the record with the given id
+   * @param pZoneId zone id
+   * @param pRecordId record id
+   * @return response, or null if errors
    */
-  public boolean challengeStart (String pHostname, String pValue) {
-    String ctx = "challengeStart - ";
-    String zoneId = findZoneId(pHostname);
-    boolean recordCreated = createChallengeRecord(zoneId, pHostname, pValue);
-    if (!recordCreated) {
-      mLogger.error(ctx + "could not create challenge record for hostname " + pHostname);
-      return false;
+  private ApiResponse sendDeleteRecord (String pZoneId, String pRecordId) {
+    String url = mAPIEndpointURL + "/zones/" + pZoneId + "/dns_records/" + pRecordId;
+    try {
+      return getApiClient().delete(url).
+              header("X-Auth-Email", mAPIEmail).
+              header("X-Auth-Key", mAPIKey).
+              header("Content-Type", "application/json;charset=UTF-8").
+              asString();
+    } catch (ApiException ae) {
+      mLogger.error("sendDeleteRecord - ApiException for request " + url, ae);
     }
+    return null;
+  }
+
 
-    DNSTools dnstools = new DNSTools(mResolver);
-    String[] nameservers = dnstools.findAuthoritativeNameservers(pHostname);
-    if (mLogger.isDebugEnabled()) {
-      mLogger.debug(ctx + "found nameservers = " + Arrays.toString(nameservers));
+  /**
+   * Finds the id of the zone to which the given hostname belongs
+   * @param pHostname hostname
+   * @param pUseCache true to use a previously resolved id if it hasn't expired, false to ask the API again
+   * @return zone id, or null if not found or errors
+   */
+  private String findZoneId (String pHostname, boolean pUseCache) {
+    String zoneKey = mAPIEndpointURL + " zone " + pHostname;
+    String zoneId = pUseCache ? getCachedId(zoneKey) : null;
+    if (zoneId == null) {
+      zoneId = findZoneId(pHostname);
+      if (zoneId != null) {
+        cacheId(zoneKey, zoneId);
+      }
     }
+    return zoneId;
+  }
 
-    // wait for a while before polling the nameservers to allow the zone transfers to complete
-    mLogger.info(ctx + "waiting " + mPropagationWaitSecs + " seconds for record propagation");
-    try {
-      Thread.sleep(mPropagationWaitSecs * 1000L);
-    } catch (InterruptedException ie) {
-      // nothing much to do here
+
+  /**
+   * Creates the _acme-challenge TXT record for the given challenge
+   * @param pChallenge challenge to deploy
+   * @return true if the challenge record was created, false otherwise
+   */
+  protected boolean deployChallenge (Challenge pChallenge) {
+    String ctx = "deployChallenge - ";
+    String zoneId = findZoneId(pChallenge.getHostname(), true);
+    String recordId = zoneId != null ? createChallengeRecord(zoneId, pChallenge.getHostname(), pChallenge.getValue()) : null;
+    if (recordId == null && zoneId != null) {
+      // the cached id may be stale (e.g. the zone was recreated and the API answered 404), so look it up again
+      String freshZoneId = findZoneId(pChallenge.getHostname(), false);
+      if (freshZoneId != null && !freshZoneId.equals(zoneId)) {
+        mLogger.info(ctx + "retrying with refreshed zone id for " + pChallenge.getHostname());
+        zoneId = freshZoneId;
+        recordId = createChallengeRecord(zoneId, pChallenge.getHostname(), pChallenge.getValue());
+      }
+    }
+    if (recordId != null) {
+      // with both ids at hand the cleanup is a single DELETE
+      putChallengeState(pChallenge, ZONE_ID_STATE, zoneId);
+      putChallengeState(pChallenge, RECORD_ID_STATE, recordId);
     }
+    return recordId != null;
+  }
+
 
-    // poll the authoritative nameservers to find out if the newly created record is actually there
-    return dnstools.pollNameserversForChallengeRecordPresence(ACME_CHALLENGE_PREFIX + pHostname, nameservers, mDnsResolutionTimeoutSecs);
+  /**
+   * Deletes the _acme-challenge TXT record for the given challenge, with a single request when its id was recorded
+   * at deploy time; otherwise, or if that record is gone, the records are looked up by name and value,
+   * which also deletes their duplicates if any
+   * @param pChallenge challenge to remove
+   * @return true if the challenge record was deleted, false otherwise
+   */
+  protected boolean removeChallenge (Challenge pChallenge) {
+    String ctx = "removeChallenge - ";
+    JSONObject state = getChallengeState(pChallenge);
+    if (state.has(ZONE_ID_STATE) && state.has(RECORD_ID_STATE)) {
+      String recordId = state.getString(RECORD_ID_STATE);
+      ApiResponse response = sendDeleteRecord(state.getString(ZONE_ID_STATE), recordId);
+      if (checkResponse(response)) {
+        return true;
+      }
+      if (response == null || response.getStatus() != HTTP_NOT_FOUND) {
+        mLogger.error(ctx + "could not delete record " + recordId + " created at deploy time for " + pChallenge.getHostname()
+                + (response == null ? "" : ", API endpoint returned " + response.getStatus()));
+        return false;
+      }
+      mLogger.info(ctx + "record " + recordId + " created at deploy time for " + pChallenge.getHostname() + " is gone, looking the records up");
+    }
+    String zoneId = findZoneId(pChallenge.getHostname(), true);
+    boolean result = zoneId != null && deleteChallengeRecords(zoneId, pChallenge.getHostname(), pChallenge.getValue());
+    if (!result && zoneId != null) {
+      // the cached id may be stale (e.g. the zone was recreated and the API answered 404), so look it up again
+      String freshZoneId = findZoneId(pChallenge.getHostname(), false);
+      if (freshZoneId != null && !freshZoneId.equals(zoneId)) {
+        mLogger.info(ctx + "retrying with refreshed zone id for " + pChallenge.getHostname());
+        result = deleteChallengeRecords(freshZoneId, pChallenge.getHostname(), pChallenge.getValue());
+      }
+    }
+    return result;
   }
 
 
   /**
-   * Entry point for the challenge-end hook
-   * @param pHostname hostname to delete the record for
-   * @return true if the record was correctly removed from all authoritative nameservers of the zone, false otherwise
+   * Creates the _acme-challenge TXT records for all the given challenges, with a single request per zone
+   * @param pChallenges challenges to deploy
+   * @return for each challenge, in the same order, true if its record was created, false otherwise
    */
-  public boolean challengeStop (String pHostname) {
-    String ctx = "challengeStop - ";
-    String zoneId = findZoneId(pHostname);
-    boolean recordDeleted = deleteChallengeRecord(zoneId, pHostname);
-    if (!recordDeleted) {
-      mLogger.error(ctx + "could not delete challenge record for hostname " + pHostname);
-      return false;
+  @Override
+  protected boolean[] deployChallenges (List<Challenge> pChallenges) {
+    String ctx = "deployChallenges - ";
+    boolean[] result = new boolean[pChallenges.size()];
+
+    for (Map.Entry<String, List<Integer>> zone : groupByZone(pChallenges).entrySet()) {
+      String zoneId = zone.getKey();
+      List<JSONObject> posts = new ArrayList<>();
+      for (int i : zone.getValue()) {
+        posts.add(buildChallengeRecord(pChallenges.get(i).getHostname(), pChallenges.get(i).getValue()));
+      }
+      String[] recordIds = new String[posts.size()];
+      JSONObject batchResult = batch(zoneId, posts, Collections.emptySet());
+      if (batchResult != null) {
+        JSONArray created = batchResult.optJSONArray("posts");
+        for (int j = 0; j < recordIds.length; j++) {
+          JSONObject record = created != null && j < created.length() ? created.optJSONObject(j) : null;
+          // the records were created anyway, without their ids the cleanup will just look them up
+          recordIds[j] = record != null ? record.optString("id", "") : "";
+        }
+      } else {
+        mLogger.info(ctx + "batch failed for zone " + zoneId + ", creating the records one by one");
+        List<Future<String>> creations = new ArrayList<>();
+        for (int i : zone.getValue()) {
+          Challenge challenge = pChallenges.get(i);
+          creations.add(TaskExecutors.queries().submit(() -> createChallengeRecord(zoneId, challenge.getHostname(), challenge.getValue())));
+        }
+        for (int j = 0; j < recordIds.length; j++) {
+          recordIds[j] = getQuietly(ctx, creations.get(j));
+        }
+      }
+      for (int j = 0; j < recordIds.length; j++) {
+        if (recordIds[j] != null) {
+          Challenge challenge = pChallenges.get(zone.getValue().get(j));
+          result[zone.getValue().get(j)] = true;
+          putChallengeState(challenge, ZONE_ID_STATE, zoneId);
+          if (!"".equals(recordIds[j])) {
+            putChallengeState(challenge, RECORD_ID_STATE, recordIds[j]);
+          }
+        }
+      }
+    }
+
+    // what's left may have a stale zone id, which the single challenge path looks up again
+    for (int i = 0; i < result.length; i++) {
+      if (!result[i]) {
+        result[i] = deployChallenge(pChallenges.get(i));
+      }
     }
+    return result;
+  }
 
-    DNSTools dnstools = new DNSTools(mResolver);
-    String[] nameservers = dnstools.findAuthoritativeNameservers(pHostname);
-    if (mLogger.isDebugEnabled()) {
-      mLogger.debug(ctx + "found nameservers = " + Arrays.toString(nameservers));
+
+  /**
+   * Deletes the _acme-challenge TXT records for all the given challenges with a single request per zone, using the ids
+   * recorded at deploy time and looking up the others by name and value
+   * @param pChallenges challenges to remove
+   * @return for each challenge, in the same order, true if its records were deleted, false otherwise
+   */
+  @Override
+  protected boolean[] removeChallenges (List<Challenge> pChallenges) {
+    String ctx = "removeChallenges - ";
+    boolean[] result = new boolean[pChallenges.size()];
+
+    // the ids of the records to delete are either recorded at deploy time or looked up, concurrently
+    String[] zoneIds = new String[pChallenges.size()];
+    List<Future<List<String>>> lookups = new ArrayList<>();
+    for (int i = 0; i < result.length; i++) {
+      Challenge challenge = pChallenges.get(i);
+      JSONObject state = getChallengeState(challenge);
+      if (state.has(ZONE_ID_STATE) && state.has(RECORD_ID_STATE)) {
+        zoneIds[i] = state.getString(ZONE_ID_STATE);
+        lookups.add(CompletableFuture.completedFuture(Collections.singletonList(state.getString(RECORD_ID_STATE))));
+      } else {
+        zoneIds[i] = state.has(ZONE_ID_STATE) ? state.getString(ZONE_ID_STATE) : findZoneId(challenge.getHostname(), true);
+        String zoneId = zoneIds[i];
+        lookups.add(zoneId == null ?
+                CompletableFuture.completedFuture(null) :
+                TaskExecutors.queries().submit(() -> findChallengeRecordIds(zoneId, challenge.getHostname(), challenge.getValue())));
+      }
+    }
+    List<List<String>> recordIds = new ArrayList<>();
+    Map<String, List<Integer>> zones = new LinkedHashMap<>();
+    for (int i = 0; i < result.length; i++) {
+      List<String> ids = getQuietly(ctx, lookups.get(i));
+      recordIds.add(ids);
+      if (ids != null && ids.isEmpty()) {
+        // nothing left to delete
+        result[i] = true;
+      } else if (ids != null) {
+        zones.computeIfAbsent(zoneIds[i], key -> new ArrayList<>()).add(i);
+      }
     }
 
-    // wait for a while before polling the nameservers to allow the zone transfers to complete
-    mLogger.info(ctx + "waiting " + mPropagationWaitSecs + " seconds for record propagation");
+    for (Map.Entry<String, List<Integer>> zone : zones.entrySet()) {
+      String zoneId = zone.getKey();
+      Set<String> deletes = new LinkedHashSet<>();
+      for (int i : zone.getValue()) {
+        deletes.addAll(recordIds.get(i));
+      }
+      if (batch(zoneId, Collections.emptyList(), deletes) != null) {
+        for (int i : zone.getValue()) {
+          result[i] = true;
+        }
+        continue;
+      }
+      mLogger.info(ctx + "batch failed for zone " + zoneId + ", deleting the records one by one");
+      Map<String, Boolean> deleted = deleteRecords(zoneId, deletes);
+      for (int i : zone.getValue()) {
+        result[i] = true;
+        for (String recordId : recordIds.get(i)) {
+          result[i] &= deleted.get(recordId);
+        }
+      }
+    }
+
+    // what's left may have a stale zone or record id, which the single challenge path looks up again if the API answers 404
+    for (int i = 0; i < result.length; i++) {
+      if (!result[i]) {
+        result[i] = removeChallenge(pChallenges.get(i));
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * Groups the given challenges by the id of their zone, leaving out those whose zone cannot be found
+   * @param pChallenges challenges
+   * @return indexes of the challenges, by zone id
+   */
+  private Map<String, List<Integer>> groupByZone (List<Challenge> pChallenges) {
+    Map<String, List<Integer>> zones = new LinkedHashMap<>();
+    for (int i = 0; i < pChallenges.size(); i++) {
+      String zoneId = findZoneId(pChallenges.get(i).getHostname(), true);
+      if (zoneId != null) {
+        zones.computeIfAbsent(zoneId, key -> new ArrayList<>()).add(i);
+      }
+    }
+    return zones;
+  }
+
+
+  /**
+   * Waits for the result of a request, logging its failure
+   * @param pCtx logging context
+   * @param pRequest request
+   * @return result of the request, or null if it failed
+   */
+  private <T> T getQuietly (String pCtx, Future<T> pRequest) {
     try {
-      Thread.sleep(mPropagationWaitSecs * 1000L);
+      return pRequest.get();
+    } catch (ExecutionException ee) {
+      mLogger.error(pCtx + "ExecutionException waiting for a request", ee.getCause());
     } catch (InterruptedException ie) {
-      // nothing much to do here
+      Thread.currentThread().interrupt();
     }
-
-    // poll the authoritative nameservers to find out if the newly created record is actually there
-    return dnstools.pollNameserversForChallengeRecordAbsence(ACME_CHALLENGE_PREFIX + pHostname, nameservers, mDnsResolutionTimeoutSecs);
+    return null;
   }
 
 
@@ -258,14 +694,12 @@ public class CloudflareDNSHook implements Hook {
    * @param pResponse http response
    * @return true if the response status is 200 and there is a body with a "result": "success" property
    */
-  @SuppressWarnings("unchecked")
-  private boolean checkResponse (HttpResponse<?> pResponse) {
+  private boolean checkResponse (ApiResponse pResponse) {
     boolean result = false;
     if (pResponse != null
             && pResponse.getStatus() == 200
             && pResponse.getBody() != null) {
-      HttpResponse<String> response = (HttpResponse<String>)pResponse;
-      JSONObject body = new JSONObject(response.getBody());
+      JSONObject body = new JSONObject(pResponse.getBody());
       if (body.has("result")) {
         result = Boolean.TRUE.equals(body.getBoolean("success"));
       }
@@ -1,6 +1,10 @@
 package com.datafaber.dehydrated.hooks;
 
-public interface Hook {
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface Hook extends Closeable {
 
   /**
    * prefix to all the challenge record names
@@ -24,4 +28,69 @@ public interface Hook {
    */
   boolean challengeStop (String pHostname);
 
+
+  /**
+   * Starts all the given challenges at once, as dehydrated does with HOOK_CHAIN=yes
+   * @param pChallenges challenges to create the TXT records for
+   * @return true if all the records were successfully created at all authoritative nameservers of their domains, false otherwise
+   */
+  boolean challengeStart (List<Challenge> pChallenges);
+
+
+  /**
+   * Ends all the given challenges at once, as dehydrated does with HOOK_CHAIN=yes
+   * @param pChallenges challenges to delete the TXT records for
+   * @return true if all the records were successfully deleted at all authoritative nameservers of their domains, false otherwise
+   */
+  boolean challengeStop (List<Challenge> pChallenges);
+
+
+  /**
+   * Starts the given challenge without blocking the caller
+   * @param pChallenge challenge to create the TXT record for
+   * @return future completed once the record is on all authoritative nameservers of the domain, or it's known that it isn't
+   */
+  CompletableFuture<ChallengeResult> challengeStartAsync (Challenge pChallenge);
+
+
+  /**
+   * Ends the given challenge without blocking the caller
+   * @param pChallenge challenge to delete the TXT record for
+   * @return future completed once the record is gone from all authoritative nameservers of the domain, or it's known that it isn't
+   */
+  CompletableFuture<ChallengeResult> challengeStopAsync (Challenge pChallenge);
+
+
+  /**
+   * Starts all the given challenges at once without blocking the caller
+   * @param pChallenges challenges to create the TXT records for
+   * @return future completed with one result per challenge, in the same order
+   */
+  CompletableFuture<List<ChallengeResult>> challengeStartAsync (List<Challenge> pChallenges);
+
+
+  /**
+   * Ends all the given challenges at once without blocking the caller
+   * @param pChallenges challenges to delete the TXT records for
+   * @return future completed with one result per challenge, in the same order
+   */
+  CompletableFuture<List<ChallengeResult>> challengeStopAsync (List<Challenge> pChallenges);
+
+
+  /**
+   * Deletes the TXT records of all the given challenges, without waiting for them to be gone from the nameservers;
+   * together with {@link #challengeVerifyDeletedAsync(List)} this splits challengeStop in two
+   * @param pChallenges challenges to delete the TXT records for
+   * @return true if all the records were successfully deleted via the API, false otherwise
+   */
+  boolean challengeDelete (List<Challenge> pChallenges);
+
+
+  /**
+   * Waits for the already deleted TXT records of all the given challenges to be gone from the nameservers
+   * @param pChallenges challenges whose TXT records were deleted
+   * @return future completed with one result per challenge, in the same order
+   */
+  CompletableFuture<List<ChallengeResult>> challengeVerifyDeletedAsync (List<Challenge> pChallenges);
+
 }
@@ -1,16 +1,33 @@
 package com.datafaber.dehydrated.hooks;
 
-import com.datafaber.dehydrated.DNSTools;
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import com.datafaber.dehydrated.ApiClient.ApiResponse;
+import com.datafaber.dehydrated.ApiClient.ApiStream;
+import com.datafaber.dehydrated.ApiException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * dehydrated hooks using the PowerDNS HTTP API to manipulate records
@@ -19,35 +36,57 @@ import java.util.Properties;
  * See https://doc.powerdns.com/md/httpapi/api_spec/
  *
  * How this hook works:
- * for both challenge-start and challenge-end
+ * for challenge-start, unless the ids were cached by a previous run, and for challenge-end, unless they were
+ * recorded when the challenge was deployed
  *   call /api/v1/servers to get the list of servers
  *   find the id of the authoritative server, if any
- *   get the list of all zones from the server and find the most specific one with respect to our given hostname
+ *   look up every suffix of our given hostname as a zone name and keep the most specific one which exists
+ *   if none is found, get the list of all zones from the server and find the most specific one with respect to our given hostname
  * challengeStart
- *  create the _acme-challenge.hostname TXT record
+ *  add the value to the _acme-challenge.hostname TXT record set, keeping the values already there, such as the one
+ *  of the wildcard certificate for the same hostname
  *  wait for all the nameservers of the zone to get the newly-created TXT record
  *  exit with a non-zero code if not all nameservers were able to update within the configured timeout
  *  exit with a zero code instead if all nameservers updated within the configured timeout
  * challengeStop
- *  delete the _acme-challenge.hostname TXT record
+ *  remove the value from the _acme-challenge.hostname TXT record set, deleting the record set once it's empty
  *  wait for all the nameservers of the zone to remove the newly-created TXT record
  *  exit with a non-zero code if not all nameservers were able to update within the configured timeout
  *  exit with a zero code instead if all nameservers updated within the configured timeout
+ *
+ * The changes to the records of all the challenges in the same zone are sent in a single PATCH, followed by a single
+ * NOTIFY, so that the serial of the zone is bumped and the secondaries transfer the zone only once per batch
  */
-public class PowerDNSHook implements Hook {
+public class PowerDNSHook extends AbstractDNSHook {
 
   // property names specific to this hook
   private static final String PDNS_API_ENDPOINT = "PDNS_API_ENDPOINT";
   private static final String PDNS_API_KEY = "PDNS_API_KEY";
-  private static final String DNS_PROPAGATION_WAIT_SECS = "DNS_PROPAGATION_WAIT_SECS";
-  private static final String DNS_RESOLUTION_TIMEOUT_SECS = "DNS_RESOLUTION_TIMEOUT_SECS";
-  private static final String DNS_RESOLVER = "DNS_RESOLVER";
+  private static final String PDNS_ZONE_LOOKUP = "PDNS_ZONE_LOOKUP";
+  private static final String PDNS_ZONE_LOOKUP_PROBE = "probe";
+  private static final String PDNS_ZONE_LOOKUP_LIST = "list";
+
+  // how long a zone listing is reused before asking the API again
+  private static final long ZONE_LIST_REUSE_MSECS = 60 * 1000L;
+
+  // names of the challenge state written at deploy time for the cleanup
+  private static final String SERVER_ID_STATE = "serverId";
+  private static final String ZONE_ID_STATE = "zoneId";
 
   private final String mAPIEndpointURL;
   private final String mAPIKey;
-  private final String mResolver;
-  private final int mPropagationWaitSecs;
-  private final int mDnsResolutionTimeoutSecs;
+
+  // whether zones are looked up by name before listing them all; turned off if the server ignores the "zone" filter
+  private volatile boolean mProbeZones;
+
+  // one lock per zone, so that concurrent changes to the same record set never overwrite each other's values;
+  // not a monitor, since virtual threads blocked in the API calls made while holding it would pin their carriers
+  private final ConcurrentMap<String, ReentrantLock> mZoneLocks = new ConcurrentHashMap<>();
+
+  // last zone listing, reused for the hostnames of a batch
+  private ZoneMatcher mZoneMatcher;
+  private String mZoneMatcherServerId;
+  private long mZoneMatcherTime;
 
   private static Logger mLogger = LogManager.getLogger("com.datafaber.dehydrated.hooks.PowerDNSHook");
 
@@ -57,11 +96,14 @@ public class PowerDNSHook implements Hook {
    * @param pConfiguration configuration properties
    */
   public PowerDNSHook (Properties pConfiguration) {
+    super(pConfiguration);
     mAPIEndpointURL = pConfiguration.getProperty(PDNS_API_ENDPOINT);
     mAPIKey = pConfiguration.getProperty(PDNS_API_KEY);
-    mResolver = pConfiguration.getProperty(DNS_RESOLVER);
-    mPropagationWaitSecs = Integer.parseInt(pConfiguration.getProperty(DNS_PROPAGATION_WAIT_SECS));
-    mDnsResolutionTimeoutSecs = Integer.parseInt(pConfiguration.getProperty(DNS_RESOLUTION_TIMEOUT_SECS));
+    String zoneLookup = pConfiguration.getProperty(PDNS_ZONE_LOOKUP, PDNS_ZONE_LOOKUP_PROBE);
+    if (!PDNS_ZONE_LOOKUP_PROBE.equals(zoneLookup) && !PDNS_ZONE_LOOKUP_LIST.equals(zoneLookup)) {
+      throw new IllegalArgumentException("invalid value for " + PDNS_ZONE_LOOKUP + ": " + zoneLookup);
+    }
+    mProbeZones = PDNS_ZONE_LOOKUP_PROBE.equals(zoneLookup);
   }
 
 
@@ -74,7 +116,7 @@ public class PowerDNSHook implements Hook {
     String id = null;
     String url = "/api/v1/servers";
     try {
-      HttpResponse<String> response = Unirest.get(mAPIEndpointURL + url).
+      ApiResponse response = getApiClient().get(mAPIEndpointURL + url).
               header("Content-Type", "application/json;charset=UTF-8").
               header("X-API-Key", mAPIKey).asString();
       if (!checkResponse(response)) {
@@ -93,8 +135,8 @@ public class PowerDNSHook implements Hook {
           }
         }
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
     }
     return id;
   }
@@ -102,67 +144,193 @@ public class PowerDNSHook implements Hook {
 
   /**
    * Finds the id of the zone to which the given hostname belongs
+   * <p>
+   * Unless disabled, every suffix of the hostname is first looked up by name; then a recent listing of all the zones is reused if available; otherwise the listing is streamed from the API,
+   * stopping as soon as a zone named exactly as the hostname is met, since no zone can be more specific
    * @param pHostname hostname
    * @param pServerId server id
    * @return zone id, or null if not found or errors
    */
   private String findZoneId (String pHostname, String pServerId) {
     String ctx = "findZoneId - ";
+    if (mProbeZones) {
+      String id = probeZoneId(pHostname, pServerId);
+      if (id != null) {
+        return id.endsWith(".") ? id.substring(0, id.length() - 1) : id;
+      }
+      mLogger.info(ctx + "no zone found by name for " + pHostname + ", listing all zones");
+    }
+    ZoneMatcher matcher = getRecentZoneMatcher(pServerId);
     String id = null;
-    String url = "/api/v1/servers/" + pServerId + "/zones";
-
-    // make sure that the hostname ends with a dot or it won't be possible to find the matching zone
-    String hostname = pHostname;
-    if (!hostname.endsWith(".")) {
-      hostname += ".";
+    if (matcher == null) {
+      matcher = new ZoneMatcher();
+      id = streamZones(pServerId, pHostname, matcher);
+      if (id == null && matcher.size() == 0) {
+        // either an error, which has been logged already, or no zones at all
+        return null;
+      }
+      if (id == null) {
+        // the whole listing has been read, so it can be reused for the other hostnames of a batch
+        setRecentZoneMatcher(pServerId, matcher);
+      }
+    }
+    if (id == null) {
+      id = matcher.match(pHostname);
+    }
+    if (id == null) {
+      mLogger.warn(ctx + "could not match hostname " + pHostname + " in any of the " + matcher.size() + " zones");
+      return null;
+    }
+    if (id.endsWith(".")) {
+      id = id.substring(0, id.length() - 1);
     }
+    return id;
+  }
+
+
+  /**
+   * Looks up every suffix of the given hostname with the "zone" filter of the API and picks the most specific zone which exists
+   * @param pHostname hostname
+   * @param pServerId server id
+   * @return zone id, or null if no zone was found that way or errors
+   */
+  private String probeZoneId (String pHostname, String pServerId) {
+    String ctx = "probeZoneId - ";
+    return probeMostSpecificZone(pHostname, zoneName -> {
+      JSONArray zones = probeZone(pServerId, zoneName + ".");
+      if (zones == null) {
+        return null;
+      }
+      if (zones.length() > 1) {
+        // older servers ignore the filter and return all the zones, which makes probing pointless
+        mLogger.warn(ctx + "the server doesn't support looking up zones by name, listing all zones from now on");
+        mProbeZones = false;
+      }
+      for (int i = 0; i < zones.length(); i++) {
+        JSONObject zone = zones.getJSONObject(i);
+        if ((zoneName + ".").equalsIgnoreCase(zone.getString("name"))) {
+          return Optional.of(zone.getString("id"));
+        }
+      }
+      return Optional.empty();
+    });
+  }
+
 
+  /**
+   * Looks up a zone by name
+   * @param pServerId server id
+   * @param pZoneName zone name, with the trailing dot
+   * @return zones returned by the API, empty if the zone doesn't exist, or null if errors
+   */
+  private JSONArray probeZone (String pServerId, String pZoneName) {
+    String ctx = "probeZone - ";
+    String url = "/api/v1/servers/" + pServerId + "/zones";
     try {
-      HttpResponse<String> response = Unirest.get(mAPIEndpointURL + url).
+      ApiResponse response = getApiClient().get(mAPIEndpointURL + url).
+              queryString("zone", pZoneName).
               header("Content-Type", "application/json;charset=UTF-8").
               header("X-API-Key", mAPIKey).
               asString();
       if (!checkResponse(response)) {
+        mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url + "?zone=" + pZoneName);
+        return null;
+      }
+      return new JSONArray(response.getBody());
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url + "?zone=" + pZoneName, ae);
+    } catch (JSONException je) {
+      mLogger.error(ctx + "JSONException parsing the response to request " + url + "?zone=" + pZoneName, je);
+    }
+    return null;
+  }
+
+
+  /**
+   * Returns the matcher built from the last complete listing of the zones of the given server, if it's recent enough
+   * so that all the hostnames of a batch are matched against a single zone listing
+   * @param pServerId server id
+   * @return zone matcher, or null if there's no recent one
+   */
+  private synchronized ZoneMatcher getRecentZoneMatcher (String pServerId) {
+    if (mZoneMatcher != null && pServerId.equals(mZoneMatcherServerId) && System.currentTimeMillis() - mZoneMatcherTime < ZONE_LIST_REUSE_MSECS) {
+      return mZoneMatcher;
+    }
+    return null;
+  }
+
+
+  /**
+   * Remembers the matcher built from a complete listing of the zones of the given server
+   * @param pServerId server id
+   * @param pMatcher zone matcher
+   */
+  private synchronized void setRecentZoneMatcher (String pServerId, ZoneMatcher pMatcher) {
+    mZoneMatcher = pMatcher;
+    mZoneMatcherServerId = pServerId;
+    mZoneMatcherTime = System.currentTimeMillis();
+  }
+
+
+  /**
+   * Streams the list of all zones of the given server into the given matcher, without ever holding the whole response
+   * in memory: only the name and the id of one zone at a time are extracted
+   * @param pServerId server id
+   * @param pHostname hostname being looked up; the listing stops early when a zone with this exact name is met
+   * @param pMatcher matcher receiving the zones
+   * @return id of the zone named exactly as the hostname if it was met, null if the whole listing was read or errors
+   */
+  private String streamZones (String pServerId, String pHostname, ZoneMatcher pMatcher) {
+    String ctx = "streamZones - ";
+    String url = "/api/v1/servers/" + pServerId + "/zones";
+    String hostname = pHostname.endsWith(".") ? pHostname : pHostname + ".";
+    try (ApiStream response = getApiClient().get(mAPIEndpointURL + url).
+            header("Accept", "application/json").
+            header("X-API-Key", mAPIKey).
+            asStream()) {
+      InputStream body = response.getBody();
+      if (response.getStatus() != 200 || body == null) {
         mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
         return null;
       }
-      String body = response.getBody();
-      JSONArray zones = new JSONArray(body);
-      String[] hostnameParts = hostname.split("\\.");
-      if (zones.length() > 0) {
-        for (int i = 0; i < zones.length(); i++) {
-          JSONObject zone = zones.getJSONObject(i);
-          String zoneName = zone.getString("name");
-          String[] zoneNameParts = zoneName.split("\\.");
-          if (hostnameParts.length == zoneNameParts.length) {
-            // certificate for the zone apex, needs an exact match to find the zone
-            if (hostname.equals(zoneName)) {
-              id = zone.getString("id");
-              break;
-            }
-          } else if (hostnameParts.length > zoneNameParts.length) {
-            // certificate for a host in the zone, needs a contains (substring) match only
-            String hostnameZone = "";
-            for (int j = (hostnameParts.length - zoneNameParts.length); j < hostnameParts.length; j++) {
-              hostnameZone += hostnameParts[j] + ".";
-            }
-            if (hostnameZone.equals(zoneName)) {
-              id = zone.getString("id");
-              break;
+      try (Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8)) {
+        JSONTokener tokener = new JSONTokener(reader);
+        if (tokener.nextClean() != '[') {
+          throw tokener.syntaxError("expected an array of zones");
+        }
+        char next = tokener.nextClean();
+        if (next != ']') {
+          tokener.back();
+        }
+        while (next != ']') {
+          Object zone = tokener.nextValue();
+          if (zone instanceof JSONObject) {
+            String zoneName = ((JSONObject)zone).getString("name");
+            String zoneId = ((JSONObject)zone).getString("id");
+            pMatcher.add(zoneName, zoneId);
+            if (hostname.equalsIgnoreCase(zoneName)) {
+              // no zone can be more specific than this one, so skip the rest of the listing
+              response.abort();
+              return zoneId;
             }
-          } else {
-            // can happen only if given invalid data
-            mLogger.warn(ctx + "could not match hostname " + hostname + " in zone " + zoneName);
+          }
+          next = tokener.nextClean();
+          if (next != ',' && next != ']') {
+            throw tokener.syntaxError("expected , or ] after a zone");
           }
         }
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
-    }
-    if (id.endsWith(".")) {
-      id = id.substring(0, id.length() - 1);
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
+      pMatcher.clear();
+    } catch (IOException ioe) {
+      mLogger.error(ctx + "IOException for request " + url, ioe);
+      pMatcher.clear();
+    } catch (JSONException je) {
+      mLogger.error(ctx + "JSONException parsing the response to request " + url, je);
+      pMatcher.clear();
     }
-    return id;
+    return null;
   }
 
 
@@ -178,7 +346,7 @@ public class PowerDNSHook implements Hook {
     String url = "/api/v1/servers/" + pServerId + "/zones/" + pZoneId;
     boolean result = false;
     try {
-      HttpResponse<String> response = Unirest.patch(mAPIEndpointURL + url).
+      ApiResponse response = getApiClient().patch(mAPIEndpointURL + url).
               header("Content-Type", "application/json;charset=UTF-8").
               header("X-API-Key", mAPIKey).
               body(pRequestBody).
@@ -189,8 +357,8 @@ public class PowerDNSHook implements Hook {
       } else {
         mLogger.info(ctx + "successful API request for request " + url);
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
     }
     return result;
   }
@@ -207,7 +375,7 @@ public class PowerDNSHook implements Hook {
     String url = "/api/v1/servers/" + pServerId + "/zones/" + pZoneId + "/notify";
     boolean result = false;
     try {
-      HttpResponse<String> response = Unirest.put(mAPIEndpointURL + url).
+      ApiResponse response = getApiClient().put(mAPIEndpointURL + url).
               header("Content-Type", "application/json;charset=UTF-8").
               header("X-API-Key", mAPIKey).
               asString();
@@ -217,61 +385,154 @@ public class PowerDNSHook implements Hook {
       } else {
         mLogger.info(ctx + "successful API request for request " + url);
       }
-    } catch (UnirestException ue) {
-      mLogger.error(ctx + "UnirestException for request " + url, ue);
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
     }
     return result;
   }
 
 
   /**
-   * Creates the _acme-challenge TXT record for the given hostname in the given zone
+   * Retrieves the records of a TXT record set
    * @param pServerId server id
    * @param pZoneId zone id
-   * @param pHostname hostname to create the record for
-   * @param pValue value for the TXT record
-   * @return true if the challenge record was created, false otherwise
+   * @param pName name of the record set, with the trailing dot
+   * @return records, empty if the record set doesn't exist, or null if errors
    */
-  private boolean createChallengeRecord (String pServerId, String pZoneId, String pHostname, String pValue) {
-    // make sure that the hostname ends with a dot or it won't be possible to find the matching zone
-    String hostname = pHostname;
-    if (!hostname.endsWith(".")) {
-      hostname += ".";
+  private JSONArray getTxtRecords (String pServerId, String pZoneId, String pName) {
+    String ctx = "getTxtRecords - ";
+    String url = "/api/v1/servers/" + pServerId + "/zones/" + pZoneId;
+    try {
+      // servers which don't know the filters return the whole zone, so the record set is looked for anyway
+      ApiResponse response = getApiClient().get(mAPIEndpointURL + url).
+              queryString("rrset_name", pName).
+              queryString("rrset_type", "TXT").
+              header("Accept", "application/json").
+              header("X-API-Key", mAPIKey).
+              asString();
+      if (!checkResponse(response)) {
+        mLogger.error(ctx + "API endpoint returned " + response.getStatus() + " for request " + url);
+        return null;
+      }
+      JSONArray rrsets = new JSONObject(response.getBody()).optJSONArray("rrsets");
+      if (rrsets != null) {
+        for (int i = 0; i < rrsets.length(); i++) {
+          JSONObject rrset = rrsets.getJSONObject(i);
+          if (pName.equalsIgnoreCase(rrset.getString("name")) && "TXT".equals(rrset.getString("type"))) {
+            return rrset.getJSONArray("records");
+          }
+        }
+      }
+      return new JSONArray();
+    } catch (ApiException ae) {
+      mLogger.error(ctx + "ApiException for request " + url, ae);
+    } catch (JSONException je) {
+      mLogger.error(ctx + "JSONException parsing the response to request " + url, je);
+    }
+    return null;
+  }
+
+
+  /**
+   * Builds the change to the _acme-challenge TXT record set of the given hostname which adds and removes the given values,
+   * keeping all the other values in the record set
+   * @param pServerId server id
+   * @param pZoneId zone id
+   * @param pHostname hostname, with the trailing dot
+   * @param pAdded values to add
+   * @param pRemoved values to remove; a null value removes all of them
+   * @return change to the record set, either a REPLACE or a DELETE if no values are left, or null if errors
+   */
+  private JSONObject buildChallengeRRset (String pServerId, String pZoneId, String pHostname, Collection<String> pAdded, Collection<String> pRemoved) {
+    String name = ACME_CHALLENGE_PREFIX + pHostname;
+    JSONArray records = new JSONArray();
+    if (!pRemoved.contains(null)) {
+      JSONArray existing = getTxtRecords(pServerId, pZoneId, name);
+      if (existing == null) {
+        return null;
+      }
+      List<String> removed = new ArrayList<>();
+      for (String value : pRemoved) {
+        removed.add(quote(value));
+      }
+      for (int i = 0; i < existing.length(); i++) {
+        JSONObject record = existing.getJSONObject(i);
+        if (!removed.contains(record.getString("content"))) {
+          records.put(record);
+        }
+      }
+    }
+    for (String value : pAdded) {
+      String content = quote(value);
+      if (!hasContent(records, content)) {
+        // format of a record: { "content": "\"value\"", "disabled": false, "set-ptr": false }
+        JSONObject record = new JSONObject();
+        record.put("content", content);
+        record.put("disabled", false);
+        record.put("set-ptr", false);
+        records.put(record);
+      }
     }
 
+    JSONObject rrset = new JSONObject();
+    rrset.put("name", name);
+    rrset.put("type", "TXT");
+    if (records.length() == 0) {
+      rrset.put("changetype", "DELETE");
+    } else {
+      rrset.put("changetype", "REPLACE");
+      rrset.put("ttl", 30);
+      rrset.put("records", records);
+    }
+    return rrset;
+  }
+
+
+  /**
+   * Adds or removes values of the _acme-challenge TXT record sets of the given hostnames, all in the same zone,
+   * in one request, then notifies the secondary nameservers once
+   * @param pServerId server id
+   * @param pZoneId zone id
+   * @param pValues values to add or remove, by hostname; a null value to remove removes all the values of its hostname
+   * @param pAdd true to add the values, false to remove them
+   * @return true if the record sets were changed, false otherwise
+   */
+  private boolean changeChallengeRecords (String pServerId, String pZoneId, Map<String, List<String>> pValues, boolean pAdd) {
     // format for the request body:
     // {
     //    "rrsets": [{
-    //              "name": "test.h-lan.net",
+    //              "name": "_acme-challenge.test.h-lan.net.",
     //              "type": "TXT",
     //              "ttl": 30,
-    //              "records": [{
-    //                "content": "value",
-    //                "disabled": false,
-    //                "set-ptr": false
-    //              }],
+    //              "records": [ ... every value of the record set ... ],
     //      "changetype": "REPLACE"
-    //    }]
+    //    }, ... one per hostname ... ]
     //  }
-    JSONObject record = new JSONObject();
-    record.put("content", "\"" + pValue + "\"");
-    record.put("disabled", false);
-    record.put("set-ptr", false);
-    JSONArray records = new JSONArray();
-    records.put(record);
-    JSONObject rrset = new JSONObject();
-    rrset.put("changetype", "REPLACE");
-    rrset.put("name", ACME_CHALLENGE_PREFIX + hostname);
-    rrset.put("type", "TXT");
-    rrset.put("ttl", 30);
-    rrset.put("records", records);
-    JSONArray rrsets = new JSONArray();
-    rrsets.put(rrset);
-    JSONObject requestBody = new JSONObject();
-    requestBody.put("rrsets", rrsets);
-    boolean result = modifyRecord(pServerId, pZoneId, requestBody);
-
-    // need to tell PowerDNS to notify slaves, otherwise the new record will never be propagated
+    boolean result;
+    // the record sets are read and written back whole, so no other change to them may happen in between
+    ReentrantLock zoneLock = mZoneLocks.computeIfAbsent(pServerId + " " + pZoneId, key -> new ReentrantLock());
+    zoneLock.lock();
+    try {
+      JSONArray rrsets = new JSONArray();
+      for (Map.Entry<String, List<String>> values : pValues.entrySet()) {
+        // make sure that the hostname ends with a dot or it won't be possible to find the matching zone
+        String hostname = values.getKey().endsWith(".") ? values.getKey() : values.getKey() + ".";
+        JSONObject rrset = pAdd ?
+                buildChallengeRRset(pServerId, pZoneId, hostname, values.getValue(), Collections.emptyList()) :
+                buildChallengeRRset(pServerId, pZoneId, hostname, Collections.emptyList(), values.getValue());
+        if (rrset == null) {
+          return false;
+        }
+        rrsets.put(rrset);
+      }
+      JSONObject requestBody = new JSONObject();
+      requestBody.put("rrsets", rrsets);
+      result = modifyRecord(pServerId, pZoneId, requestBody);
+    } finally {
+      zoneLock.unlock();
+    }
+
+    // need to tell PowerDNS to notify slaves, otherwise the changes will never be propagated
     if (result) {
       result = triggerNotify(pServerId, pZoneId);
     }
@@ -280,105 +541,238 @@ public class PowerDNSHook implements Hook {
 
 
   /**
-   * Deletes the _acme-challenge TXT record for the given hostname in the given zone
+   * Adds a value to the _acme-challenge TXT record set for the given hostname in the given zone
    * @param pServerId server id
    * @param pZoneId zone id
    * @param pHostname hostname to create the record for
+   * @param pValue value for the TXT record
+   * @return true if the challenge record was created, false otherwise
+   */
+  private boolean createChallengeRecord (String pServerId, String pZoneId, String pHostname, String pValue) {
+    return changeChallengeRecords(pServerId, pZoneId, Collections.singletonMap(pHostname, Collections.singletonList(pValue)), true);
+  }
+
+
+  /**
+   * Removes a value from the _acme-challenge TXT record set for the given hostname in the given zone
+   * @param pServerId server id
+   * @param pZoneId zone id
+   * @param pHostname hostname to delete the record for
+   * @param pValue value to remove, null to delete the whole record set
    * @return true if the challenge record was deleted, false otherwise
    */
-  private boolean deleteChallengeRecord (String pServerId, String pZoneId, String pHostname) {
-    // make sure that the hostname ends with a dot or it won't be possible to find the matching zone
-    String hostname = pHostname;
-    if (!hostname.endsWith(".")) {
-      hostname += ".";
+  private boolean deleteChallengeRecord (String pServerId, String pZoneId, String pHostname, String pValue) {
+    return changeChallengeRecords(pServerId, pZoneId, Collections.singletonMap(pHostname, Collections.singletonList(pValue)), false);
+  }
+
+
+  /**
+   * @param pValue TXT record value
+   * @return value quoted as the content of a TXT record
+   */
+  private static String quote (String pValue) {
+    return "\"" + pValue + "\"";
+  }
+
+
+  /**
+   * @param pRecords records of a record set
+   * @param pContent record content
+   * @return true if one of the records has the given content
+   */
+  private static boolean hasContent (JSONArray pRecords, String pContent) {
+    for (int i = 0; i < pRecords.length(); i++) {
+      if (pContent.equals(pRecords.getJSONObject(i).getString("content"))) {
+        return true;
+      }
     }
+    return false;
+  }
 
-    JSONObject rrset = new JSONObject();
-    rrset.put("changetype", "DELETE");
-    rrset.put("name", ACME_CHALLENGE_PREFIX + hostname);
-    rrset.put("type", "TXT");
-    JSONArray rrsets = new JSONArray();
-    rrsets.put(rrset);
-    JSONObject requestBody = new JSONObject();
-    requestBody.put("rrsets", rrsets);
-    boolean result = modifyRecord(pServerId, pZoneId, requestBody);
 
-    // need to tell PowerDNS to notify slaves, otherwise the deleted record will never be propagated
+  /**
+   * Finds the server id and the id of the zone to which the given hostname belongs
+   * @param pHostname hostname
+   * @param pUseCache true to use previously resolved ids if they haven't expired, false to ask the API again
+   * @return server id and zone id, or null if not found or errors
+   */
+  private String[] findIds (String pHostname, boolean pUseCache) {
+    String serverKey = mAPIEndpointURL + " server";
+    String zoneKey = mAPIEndpointURL + " zone " + pHostname;
+    String serverId = pUseCache ? getCachedId(serverKey) : null;
+    String zoneId = pUseCache ? getCachedId(zoneKey) : null;
+    if (serverId == null) {
+      serverId = findServerId();
+      if (serverId == null) {
+        return null;
+      }
+      cacheId(serverKey, serverId);
+      // the zone id is only meaningful together with its server id
+      zoneId = null;
+    }
+    if (zoneId == null) {
+      zoneId = findZoneId(pHostname, serverId);
+      if (zoneId == null) {
+        return null;
+      }
+      cacheId(zoneKey, zoneId);
+    }
+    return new String[] { serverId, zoneId };
+  }
+
+
+  /**
+   * Creates the _acme-challenge TXT record for the given challenge
+   * @param pChallenge challenge to deploy
+   * @return true if the challenge record was created, false otherwise
+   */
+  protected boolean deployChallenge (Challenge pChallenge) {
+    String ctx = "deployChallenge - ";
+    mLogger.info(ctx + "starting challenge for " + pChallenge.getHostname() + " with value = " + pChallenge.getValue());
+    String[] ids = findIds(pChallenge.getHostname(), true);
+    boolean result = ids != null && createChallengeRecord(ids[0], ids[1], pChallenge.getHostname(), pChallenge.getValue());
+    if (!result && ids != null) {
+      // the cached ids may be stale (e.g. the zone was recreated and the API answered 404), so look them up again
+      String[] freshIds = findIds(pChallenge.getHostname(), false);
+      if (freshIds != null && !Arrays.equals(ids, freshIds)) {
+        mLogger.info(ctx + "retrying with refreshed ids for " + pChallenge.getHostname());
+        ids = freshIds;
+        result = createChallengeRecord(ids[0], ids[1], pChallenge.getHostname(), pChallenge.getValue());
+      }
+    }
     if (result) {
-      result = triggerNotify(pServerId, pZoneId);
+      recordIds(pChallenge, ids);
     }
     return result;
   }
 
 
   /**
-   * Entry point for the challenge-start hook
-   * @param pHostname hostname to create the record for
-   * @param pValue challenge value
-   * @return true if the record was correctly deployed on all authoritative nameservers of the zone, false otherwise
+   * Deletes the _acme-challenge TXT record for the given challenge
+   * @param pChallenge challenge to remove
+   * @return true if the challenge record was deleted, false otherwise
    */
-  public boolean challengeStart (String pHostname, String pValue) {
-    String ctx = "challengeStart - ";
-    mLogger.info(ctx + "starting challenge for " + pHostname + " with value = " + pValue);
-    String serverId = findServerId();
-    String zoneId = findZoneId(pHostname, serverId);
-    boolean recordCreated = createChallengeRecord(serverId, zoneId, pHostname, pValue);
-    if (!recordCreated) {
-      mLogger.error(ctx + "could not create challenge record for hostname " + pHostname);
-      return false;
+  protected boolean removeChallenge (Challenge pChallenge) {
+    String ctx = "removeChallenge - ";
+    mLogger.info(ctx + "stopping challenge for " + pChallenge.getHostname());
+    String[] recordedIds = getRecordedIds(pChallenge);
+    if (recordedIds != null) {
+      if (deleteChallengeRecord(recordedIds[0], recordedIds[1], pChallenge.getHostname(), pChallenge.getValue())) {
+        return true;
+      }
+      mLogger.info(ctx + "could not delete the record in the zone recorded at deploy time for " + pChallenge.getHostname() + ", looking it up again");
     }
-
-    DNSTools dnstools = new DNSTools(mResolver);
-    String[] nameservers = dnstools.findAuthoritativeNameservers(pHostname);
-    if (mLogger.isDebugEnabled()) {
-      mLogger.debug(ctx + "found nameservers = " + Arrays.toString(nameservers));
+    String[] ids = findIds(pChallenge.getHostname(), true);
+    boolean result = ids != null && deleteChallengeRecord(ids[0], ids[1], pChallenge.getHostname(), pChallenge.getValue());
+    if (!result && ids != null) {
+      // the cached ids may be stale (e.g. the zone was recreated and the API answered 404), so look them up again
+      String[] freshIds = findIds(pChallenge.getHostname(), false);
+      if (freshIds != null && !Arrays.equals(ids, freshIds)) {
+        mLogger.info(ctx + "retrying with refreshed ids for " + pChallenge.getHostname());
+        result = deleteChallengeRecord(freshIds[0], freshIds[1], pChallenge.getHostname(), pChallenge.getValue());
+      }
     }
+    return result;
+  }
 
-    // wait for a while before polling the nameservers to allow the zone transfers to complete
-    mLogger.info(ctx + "waiting " + mPropagationWaitSecs + " seconds for record propagation");
-    try {
-      Thread.sleep(mPropagationWaitSecs * 1000L);
-    } catch (InterruptedException ie) {
-      // nothing much to do here
-    }
 
-    // poll the authoritative nameservers to find out if the newly created record is actually there
-    return dnstools.pollNameserversForChallengeRecordPresence(ACME_CHALLENGE_PREFIX + pHostname, nameservers, mDnsResolutionTimeoutSecs);
+  /**
+   * Adds the values of all the given challenges to their record sets, with a single PATCH and NOTIFY per zone
+   * @param pChallenges challenges to deploy
+   * @return for each challenge, in the same order, true if its record was created, false otherwise
+   */
+  @Override
+  protected boolean[] deployChallenges (List<Challenge> pChallenges) {
+    return changeChallenges(pChallenges, true);
+  }
+
+
+  /**
+   * Removes the values of all the given challenges from their record sets, with a single PATCH and NOTIFY per zone
+   * @param pChallenges challenges to remove
+   * @return for each challenge, in the same order, true if its record was deleted, false otherwise
+   */
+  @Override
+  protected boolean[] removeChallenges (List<Challenge> pChallenges) {
+    return changeChallenges(pChallenges, false);
   }
 
 
   /**
-   * Entry point for the challenge-end hook
-   * @param pHostname hostname to delete the record for
-   * @return true if the record was correctly removed from all authoritative nameservers of the zone, false otherwise
+   * Groups the given challenges by zone and changes the records of each zone at once; the challenges of a zone
+   * which couldn't be changed that way are then retried one at a time, looking up fresh ids if needed
+   * @param pChallenges challenges to deploy or remove
+   * @param pAdd true to deploy the challenges, false to remove them
+   * @return for each challenge, in the same order, true if its record was changed, false otherwise
    */
-  public boolean challengeStop (String pHostname) {
-    String ctx = "challengeStop - ";
-    mLogger.info(ctx + "stopping challenge for " + pHostname);
-    String serverId = findServerId();
-    String zoneId = findZoneId(pHostname, serverId);
-    boolean recordDeleted = deleteChallengeRecord(serverId, zoneId, pHostname);
-    if (!recordDeleted) {
-      mLogger.error(ctx + "could not delete challenge record for hostname " + pHostname);
-      return false;
+  private boolean[] changeChallenges (List<Challenge> pChallenges, boolean pAdd) {
+    String ctx = "changeChallenges - ";
+    boolean[] result = new boolean[pChallenges.size()];
+
+    // indexes of the challenges, grouped by server and zone ids
+    Map<List<String>, List<Integer>> zones = new LinkedHashMap<>();
+    for (int i = 0; i < result.length; i++) {
+      Challenge challenge = pChallenges.get(i);
+      String[] ids = pAdd ? null : getRecordedIds(challenge);
+      if (ids == null) {
+        ids = findIds(challenge.getHostname(), true);
+      }
+      if (ids != null) {
+        zones.computeIfAbsent(Arrays.asList(ids), key -> new ArrayList<>()).add(i);
+      }
     }
 
-    DNSTools dnstools = new DNSTools(mResolver);
-    String[] nameservers = dnstools.findAuthoritativeNameservers(pHostname);
-    if (mLogger.isDebugEnabled()) {
-      mLogger.debug(ctx + "found nameservers = " + Arrays.toString(nameservers));
+    for (Map.Entry<List<String>, List<Integer>> zone : zones.entrySet()) {
+      String serverId = zone.getKey().get(0);
+      String zoneId = zone.getKey().get(1);
+      Map<String, List<String>> values = new LinkedHashMap<>();
+      for (int i : zone.getValue()) {
+        Challenge challenge = pChallenges.get(i);
+        String hostname = challenge.getHostname().endsWith(".") ? challenge.getHostname() : challenge.getHostname() + ".";
+        values.computeIfAbsent(hostname, key -> new ArrayList<>()).add(challenge.getValue());
+      }
+      mLogger.info(ctx + (pAdd ? "adding" : "removing") + " challenge values for " + values.keySet() + " in zone " + zoneId);
+      if (changeChallengeRecords(serverId, zoneId, values, pAdd)) {
+        for (int i : zone.getValue()) {
+          result[i] = true;
+          if (pAdd) {
+            recordIds(pChallenges.get(i), new String[] { serverId, zoneId });
+          }
+        }
+      }
     }
 
-    // wait for a while before polling the nameservers to allow the zone transfers to complete
-    mLogger.info(ctx + "waiting " + mPropagationWaitSecs + " seconds for record propagation");
-    try {
-      Thread.sleep(mPropagationWaitSecs * 1000L);
-    } catch (InterruptedException ie) {
-      // nothing much to do here
+    for (int i = 0; i < result.length; i++) {
+      if (!result[i]) {
+        result[i] = pAdd ? deployChallenge(pChallenges.get(i)) : removeChallenge(pChallenges.get(i));
+      }
     }
+    return result;
+  }
+
+
+  /**
+   * Records the ids of the zone which holds the record of the given challenge, so that the cleanup goes straight to it
+   * @param pChallenge deployed challenge
+   * @param pIds server id and zone id
+   */
+  private void recordIds (Challenge pChallenge, String[] pIds) {
+    putChallengeState(pChallenge, SERVER_ID_STATE, pIds[0]);
+    putChallengeState(pChallenge, ZONE_ID_STATE, pIds[1]);
+  }
+
 
-    // poll the authoritative nameservers to find out if the newly created record is actually there
-    return dnstools.pollNameserversForChallengeRecordAbsence(ACME_CHALLENGE_PREFIX + pHostname, nameservers, mDnsResolutionTimeoutSecs);
+  /**
+   * Retrieves the ids recorded when the given challenge was deployed
+   * @param pChallenge challenge
+   * @return server id and zone id, or null if none were recorded
+   */
+  private String[] getRecordedIds (Challenge pChallenge) {
+    JSONObject state = getChallengeState(pChallenge);
+    if (state.has(SERVER_ID_STATE) && state.has(ZONE_ID_STATE)) {
+      return new String[] { state.getString(SERVER_ID_STATE), state.getString(ZONE_ID_STATE) };
+    }
+    return null;
   }
 
 
@@ -387,7 +781,7 @@ public class PowerDNSHook implements Hook {
    * @param pResponse http response
    * @return true if the response status is 2xx
    */
-  private boolean checkResponse (HttpResponse<?> pResponse) {
+  private boolean checkResponse (ApiResponse pResponse) {
     return (pResponse != null)
             && (pResponse.getStatus() == 200 ||
             pResponse.getStatus() == 201 ||
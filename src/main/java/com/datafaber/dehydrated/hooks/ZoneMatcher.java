@@ -0,0 +1,100 @@
+package com.datafaber.dehydrated.hooks;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the most specific zone to which a hostname belongs
+ * <p>
+ * Zones are stored in a trie keyed by their labels in reverse order (com, example, www), so that matching
+ * a hostname takes one step per label whatever the number of zones, and the last zone met is the longest match
+ */
+public class ZoneMatcher {
+
+  private final Node mRoot = new Node();
+  private int mSize;
+
+
+  /**
+   * Adds a zone
+   * @param pZoneName zone name, with or without the trailing dot
+   * @param pZoneId zone id
+   */
+  public void add (String pZoneName, String pZoneId) {
+    Node node = mRoot;
+    String[] labels = toLabels(pZoneName);
+    for (int i = labels.length - 1; i >= 0; i--) {
+      Node child = node.mChildren.get(labels[i]);
+      if (child == null) {
+        child = new Node();
+        node.mChildren.put(labels[i], child);
+      }
+      node = child;
+    }
+    if (node.mZoneId == null) {
+      mSize++;
+    }
+    node.mZoneId = pZoneId;
+  }
+
+
+  /**
+   * Finds the most specific zone to which the given hostname belongs
+   * @param pHostname hostname, with or without the trailing dot
+   * @return id of the longest matching zone, or null if none matches
+   */
+  public String match (String pHostname) {
+    String zoneId = null;
+    Node node = mRoot;
+    String[] labels = toLabels(pHostname);
+    for (int i = labels.length - 1; i >= 0 && node != null; i--) {
+      node = node.mChildren.get(labels[i]);
+      if (node != null && node.mZoneId != null) {
+        zoneId = node.mZoneId;
+      }
+    }
+    return zoneId;
+  }
+
+
+  /**
+   * Removes all the zones
+   */
+  public void clear () {
+    mRoot.mChildren.clear();
+    mSize = 0;
+  }
+
+
+  /**
+   * @return number of zones added
+   */
+  public int size () {
+    return mSize;
+  }
+
+
+  /**
+   * Splits a name into its labels, ignoring case and the trailing dot
+   * @param pName name
+   * @return labels, from the leftmost one
+   */
+  private static String[] toLabels (String pName) {
+    String name = pName.toLowerCase(Locale.ROOT);
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    return "".equals(name) ? new String[0] : name.split("\\.");
+  }
+
+
+  /**
+   * A node of the trie, which holds a zone id when the labels leading to it are a zone name
+   */
+  private static class Node {
+    private final Map<String, Node> mChildren = new HashMap<>(4);
+    private String mZoneId;
+  }
+
+}